@@ -1,6 +1,20 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Representa uma agência bancária.
@@ -15,8 +29,29 @@ public class Agencia {
     private String nome;
     // guarda as contas da agência
     private Map<Integer, Conta> contas;
+    // número da última conta criada
+    private AtomicInteger ultimoNumeroConta;
+    // estatísticas da agência, mantidas a cada operação
+    private EstatisticasAgencia estatisticas;
+    // índice das contas ordenado pelo saldo (null se não foi habilitado)
+    private IndiceSaldos indiceSaldos;
     // objeto da camada de persistência para guardar/carregar as contas
     private Persistencia persistencia;
+    // trava usada para marcar o instante exato dos snapshots: as operações a
+    // travam no modo compartilhado e o início de um snapshot no modo exclusivo
+    private TravaParticionada trava;
+    // snapshots das visões abertas no momento (veja abrirVisao)
+    private List<SnapshotAgencia> snapshotsAtivos;
+    // thread que salva os snapshots em segundo plano (um de cada vez)
+    private ScheduledExecutorService executorSnapshots;
+    // envia as operações para uma réplica (null se a replicação não foi iniciada)
+    private volatile ReplicacaoPrimaria replicacao;
+    // controle das contas quentes (null se não foi habilitado)
+    private volatile ContasQuentes contasQuentes;
+    // thread que consolida os depósitos das contas quentes
+    private ScheduledExecutorService executorContasQuentes;
+    // árvore de Merkle dos saldos (null se não foi habilitada)
+    private volatile ArvoreMerkle arvore;
 
     /**
      * Cria uma agência com um nome (inicializa a coleção de contas)
@@ -24,10 +59,38 @@ public class Agencia {
      * @param nome Nome da agência.
      */
     public Agencia(String nome, Persistencia persistencia) {
+        this(nome, persistencia, false);
+    }
+
+    /**
+     * Cria uma agência com um nome, podendo habilitar o índice de contas
+     * ordenado pelo saldo (que acelera as consultas maioresSaldos e
+     * contasComSaldoEntre, mas gasta memória e um pouco de tempo em cada
+     * operação).
+     * 
+     * @param nome         Nome da agência.
+     * @param indiceSaldos Indica se o índice de saldos deve ser mantido.
+     */
+    public Agencia(String nome, Persistencia persistencia, boolean indiceSaldos) {
         this.nome = nome;
         this.persistencia = persistencia;
+        if (indiceSaldos) {
+            this.indiceSaldos = new IndiceSaldos();
+        }
 
-        contas = new HashMap<>();
+        // As contas ficam em um mapa concorrente para que as operações possam
+        // ser feitas por várias threads ao mesmo tempo
+        contas = new ConcurrentHashMap<>();
+        estatisticas = new EstatisticasAgencia();
+        trava = new TravaParticionada();
+        // lista percorrida a cada operação e alterada apenas ao abrir e fechar
+        // visões
+        snapshotsAtivos = new CopyOnWriteArrayList<>();
+        executorSnapshots = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "snapshots-agencia-" + nome);
+            thread.setDaemon(true);
+            return thread;
+        });
         // Cria a persistência se ela ainda não existe
         if (!persistencia.criada()) {
             if (!persistencia.criarPersistencia()) {
@@ -36,8 +99,10 @@ public class Agencia {
         } else { // se ela já existe, carrega as contas já persistidas
             for (Conta conta : persistencia.carregarContas()) {
                 contas.put(conta.getNumero(), conta);
+                registrarConta(conta);
             }
         }
+        ultimoNumeroConta = new AtomicInteger(maiorNumeroConta());
     }
 
     /**
@@ -55,9 +120,19 @@ public class Agencia {
      * @return O número da conta criada
      */
     public int criarConta() {
-        Conta conta = new Conta(proximoNumeroConta());
-        contas.put(conta.getNumero(), conta);
-        return conta.getNumero();
+        int faixa = trava.travarOperacao();
+        try {
+            Conta conta = new Conta(ultimoNumeroConta.incrementAndGet());
+            synchronized (conta) {
+                contas.put(conta.getNumero(), conta);
+                registrarConta(conta);
+                salvarAlteracoes(conta);
+                RegistroEventos.operacao(RegistroEventos.Tipo.CONTA_CRIADA, conta.getNumero(), 0, 0);
+            }
+            return conta.getNumero();
+        } finally {
+            trava.liberarOperacao(faixa);
+        }
     }
 
     /**
@@ -70,7 +145,31 @@ public class Agencia {
         // Busca a conta cujo número foi passado e, se existir, realiza o depósito
         Conta conta = contas.get(nroConta);
         if (conta != null) {
-            conta.depositar(valor);
+            // a conta é travada para que o saldo anterior e o novo saldo
+            // correspondam exatamente a esta operação
+            int faixa = trava.travarOperacao();
+            try {
+                // se a conta é quente, o valor vai para as células de depósito
+                // sem travar a conta
+                ContasQuentes quentes = contasQuentes;
+                if (quentes != null && valor > 0 && quentes.depositar(nroConta, valor)) {
+                    RegistroEventos.operacao(RegistroEventos.Tipo.DEPOSITO, nroConta, 0, valor);
+                    return;
+                }
+                long inicio = quentes != null ? System.nanoTime() : 0;
+                synchronized (conta) {
+                    if (quentes != null) {
+                        quentes.registrarEspera(nroConta, System.nanoTime() - inicio);
+                    }
+                    double saldoAnterior = conta.getSaldo();
+                    conta.depositar(valor);
+                    registrarAlteracao(conta, saldoAnterior);
+                    salvarAlteracoes(conta);
+                    RegistroEventos.operacao(RegistroEventos.Tipo.DEPOSITO, nroConta, 0, valor);
+                }
+            } finally {
+                trava.liberarOperacao(faixa);
+            }
         } else {
             throw new RuntimeException("Conta inválida!!!");
         }
@@ -86,7 +185,25 @@ public class Agencia {
         // Busca a conta cujo número foi passado e, se existir, realiza o saque
         Conta conta = contas.get(nroConta);
         if (conta != null) {
-            conta.sacar(valor);
+            int faixa = trava.travarOperacao();
+            try {
+                synchronized (conta) {
+                    double saldoAnterior = conta.getSaldo();
+                    try {
+                        consolidarDepositos(conta, valor);
+                        conta.sacar(valor);
+                    } catch (SaldoInsuficienteException e) {
+                        registrarConsolidacao(conta, saldoAnterior);
+                        RegistroEventos.operacao(RegistroEventos.Tipo.SALDO_INSUFICIENTE, nroConta, 0, valor);
+                        throw e;
+                    }
+                    registrarAlteracao(conta, saldoAnterior);
+                    salvarAlteracoes(conta);
+                    RegistroEventos.operacao(RegistroEventos.Tipo.SAQUE, nroConta, 0, valor);
+                }
+            } finally {
+                trava.liberarOperacao(faixa);
+            }
         } else {
             throw new RuntimeException("Conta inválida!!!");
         }
@@ -115,22 +232,692 @@ public class Agencia {
         // transferência
         Conta contaOrigem = buscarConta(nroContaOrigem);
         Conta contaDestino = buscarConta(nroContaDestino);
-        contaOrigem.transferir(contaDestino, valor);
+
+        // As duas contas são travadas sempre na mesma ordem (do menor para o
+        // maior número) para evitar que duas transferências em sentidos
+        // opostos fiquem esperando uma pela outra (deadlock)
+        Conta primeira = nroContaOrigem <= nroContaDestino ? contaOrigem : contaDestino;
+        Conta segunda = primeira == contaOrigem ? contaDestino : contaOrigem;
+        int faixa = trava.travarOperacao();
+        try {
+            synchronized (primeira) {
+                synchronized (segunda) {
+                    double saldoAnteriorOrigem = contaOrigem.getSaldo();
+                    double saldoAnteriorDestino = contaDestino.getSaldo();
+                    try {
+                        consolidarDepositos(contaOrigem, valor);
+                        contaOrigem.transferir(contaDestino, valor);
+                    } catch (SaldoInsuficienteException e) {
+                        registrarConsolidacao(contaOrigem, saldoAnteriorOrigem);
+                        RegistroEventos.operacao(RegistroEventos.Tipo.SALDO_INSUFICIENTE, nroContaOrigem,
+                                nroContaDestino, valor);
+                        throw e;
+                    }
+                    registrarAlteracao(contaOrigem, saldoAnteriorOrigem);
+                    if (contaDestino != contaOrigem) {
+                        registrarAlteracao(contaDestino, saldoAnteriorDestino);
+                    }
+                    salvarAlteracoes(contaOrigem, contaDestino);
+                    RegistroEventos.operacao(RegistroEventos.Tipo.TRANSFERENCIA, nroContaOrigem, nroContaDestino,
+                            valor);
+                }
+            }
+        } finally {
+            trava.liberarOperacao(faixa);
+        }
     }
 
     /**
-     * Retorna um relatório da agência com os dados das contas
+     * Realiza o processamento de fim de mês: aplica as regras passadas (juros,
+     * tarifas, etc.) a todas as contas da agência e salva as contas alteradas.
+     * 
+     * As contas são divididas entre os processadores (usando um "parallel
+     * stream", que executa sobre o ForkJoinPool do Java) e as regras de cada
+     * conta são aplicadas de uma só vez. As demais operações podem continuar
+     * acontecendo durante o processamento.
+     * 
+     * Se a persistência pede salvamento por operação, cada conta alterada é
+     * salva com a conta travada, como nas demais operações. Senão, as contas
+     * alteradas são salvas no final, em um único salvamento, com os saldos
+     * que têm nesse momento (que já incluem as operações feitas durante o
+     * processamento).
+     * 
+     * Se uma regra lançar uma exceção, o processamento é interrompido, mas as
+     * contas já alteradas (inclusive a conta em que a exceção ocorreu, com as
+     * regras aplicadas até então) são registradas e salvas antes de a exceção
+     * ser repassada. Contas processadas em paralelo depois disso são salvas
+     * apenas no salvamento por operação ou ao finalizar a agência.
+     * 
+     * @param regras Regras a serem aplicadas, na ordem em que aparecem.
+     * @return Quantidade de contas que tiveram o saldo alterado.
      */
-    public String gerarRelatorio() {
-        String relatorio = "\n==== Agência " + nome + " ====\n";
-        if (contas.size() > 0) {
-            for (int numero : contas.keySet()) {
-                relatorio += contas.get(numero).extrato() + "\n";
+    public int processarMes(List<RegraMensal> regras) {
+        Queue<Conta> alteradas = new ConcurrentLinkedQueue<>();
+        try {
+            Arrays.stream(contas.values().toArray(new Conta[0]))
+                    .parallel()
+                    .forEach(conta -> aplicarRegras(conta, regras, alteradas));
+        } finally {
+            salvarFimDeMes(alteradas);
+        }
+        return alteradas.size();
+    }
+
+    /*
+     * Aplica as regras de fim de mês a uma conta, colocando-a entre as
+     * alteradas se o saldo mudou (mesmo que uma regra lance uma exceção)
+     */
+    private void aplicarRegras(Conta conta, List<RegraMensal> regras, Queue<Conta> alteradas) {
+        int faixa = trava.travarOperacao();
+        try {
+            synchronized (conta) {
+                double saldoAnterior = conta.getSaldo();
+                try {
+                    // as regras precisam do saldo completo da conta
+                    consolidarDepositos(conta, Double.POSITIVE_INFINITY);
+                    for (RegraMensal regra : regras) {
+                        double valor = regra.calcular(conta);
+                        if (valor > 0) {
+                            conta.depositar(valor);
+                        } else if (valor < 0 && conta.getSaldo() >= -valor) {
+                            conta.sacar(-valor);
+                        }
+                    }
+                } finally {
+                    if (conta.getSaldo() != saldoAnterior) {
+                        registrarAlteracao(conta, saldoAnterior);
+                        salvarAlteracoes(conta);
+                        RegistroEventos.operacao(RegistroEventos.Tipo.FIM_DE_MES, conta.getNumero(), 0,
+                                conta.getSaldo() - saldoAnterior);
+                        alteradas.add(conta);
+                    }
+                }
+            }
+        } finally {
+            trava.liberarOperacao(faixa);
+        }
+    }
+
+    /*
+     * Salva as contas alteradas pelo processamento de fim de mês, se a
+     * persistência não as salvou a cada conta
+     */
+    private void salvarFimDeMes(Collection<Conta> alteradas) {
+        if (alteradas.isEmpty() || persistencia.salvamentoPorOperacao()) {
+            return;
+        }
+        // se a persistência aceita salvamento parcial, basta salvar as contas
+        // alteradas (copiadas agora, com os saldos atuais); senão, é salvo um
+        // snapshot com todas as contas
+        boolean salvou;
+        if (persistencia.salvamentoParcial()) {
+            List<Conta> copias = new ArrayList<>();
+            for (Conta conta : alteradas) {
+                synchronized (conta) {
+                    copias.add(new Conta(conta.getNumero(), conta.getSaldo()));
+                }
             }
+            salvou = persistencia.salvarContas(copias);
         } else {
-            relatorio += "Não há contas nessa agência.\n";
+            salvou = salvarSnapshot(persistencia).join();
+        }
+        if (!salvou) {
+            RegistroEventos.erro("Agencia",
+                    "Houve um erro ao tentar salvar as contas do processamento de fim de mês", null);
+        }
+    }
+
+    /**
+     * Retorna as estatísticas da agência (quantidade de contas, saldo total,
+     * menor e maior saldo).
+     * 
+     * As estatísticas são atualizadas a cada operação, então consultá-las não
+     * exige percorrer as contas.
+     * 
+     * @return Estatísticas da agência.
+     */
+    public EstatisticasAgencia getEstatisticas() {
+        return estatisticas;
+    }
+
+    /**
+     * Retorna as contas com os maiores saldos, do maior para o menor.
+     * 
+     * Se o índice de saldos estiver habilitado, a consulta não precisa
+     * percorrer todas as contas.
+     * 
+     * @param quantidade Quantidade máxima de contas a retornar.
+     * @return Cópias das contas com os maiores saldos.
+     */
+    public List<Conta> maioresSaldos(int quantidade) {
+        if (indiceSaldos != null) {
+            return indiceSaldos.maioresSaldos(quantidade);
         }
-        return relatorio;
+        List<Conta> todas = copiarContas();
+        todas.sort(Comparator.comparingDouble(Conta::getSaldo).thenComparingInt(Conta::getNumero).reversed());
+        return new ArrayList<>(todas.subList(0, Math.min(quantidade, todas.size())));
+    }
+
+    /**
+     * Retorna as contas com saldo entre os valores passados (inclusive), do
+     * menor para o maior saldo.
+     * 
+     * Se o índice de saldos estiver habilitado, a consulta não precisa
+     * percorrer todas as contas.
+     * 
+     * @param minimo Menor saldo.
+     * @param maximo Maior saldo.
+     * @return Cópias das contas com saldo no intervalo.
+     */
+    public List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        if (indiceSaldos != null) {
+            return indiceSaldos.contasComSaldoEntre(minimo, maximo);
+        }
+        List<Conta> encontradas = new ArrayList<>();
+        for (Conta conta : copiarContas()) {
+            if (conta.getSaldo() >= minimo && conta.getSaldo() <= maximo) {
+                encontradas.add(conta);
+            }
+        }
+        encontradas.sort(Comparator.comparingDouble(Conta::getSaldo).thenComparingInt(Conta::getNumero));
+        return encontradas;
+    }
+
+    /*
+     * Retorna cópias de todas as contas com seus saldos atuais
+     */
+    private List<Conta> copiarContas() {
+        List<Conta> copias = new ArrayList<>();
+        for (Conta conta : contas.values()) {
+            synchronized (conta) {
+                copias.add(new Conta(conta.getNumero(), conta.getSaldo()));
+            }
+        }
+        return copias;
+    }
+
+    /*
+     * Atualiza os dados mantidos pela agência após uma conta ser criada ou
+     * carregada da persistência
+     */
+    private void registrarConta(Conta conta) {
+        estatisticas.registrarConta(conta.getSaldo());
+        if (indiceSaldos != null) {
+            indiceSaldos.adicionar(conta.getNumero(), conta.getSaldo());
+        }
+        marcarNaArvore(conta);
+    }
+
+    /*
+     * Atualiza os dados mantidos pela agência após uma operação ter alterado o
+     * saldo de uma conta. Deve ser chamado com a conta travada.
+     */
+    private void registrarAlteracao(Conta conta, double saldoAnterior) {
+        estatisticas.registrarAlteracao(saldoAnterior, conta.getSaldo());
+        if (indiceSaldos != null) {
+            indiceSaldos.atualizar(conta.getNumero(), saldoAnterior, conta.getSaldo());
+        }
+        marcarNaArvore(conta);
+
+        // as visões abertas precisam do saldo de antes da operação
+        for (SnapshotAgencia snapshot : snapshotsAtivos) {
+            snapshot.preservar(conta.getNumero(), saldoAnterior);
+        }
+    }
+
+    /*
+     * Marca a folha da conta na árvore de Merkle, se ela foi habilitada
+     */
+    private void marcarNaArvore(Conta conta) {
+        ArvoreMerkle arvoreAtual = arvore;
+        if (arvoreAtual != null) {
+            arvoreAtual.marcar(conta.getNumero());
+        }
+    }
+
+    /*
+     * Se a persistência pede salvamento por operação, salva as contas
+     * alteradas por uma operação. Deve ser chamado com as contas travadas,
+     * para que os saldos cheguem à persistência na mesma ordem das operações.
+     */
+    private void salvarAlteracoes(Conta... alteradas) {
+        replicarAlteracoes(alteradas);
+        if (persistencia.salvamentoPorOperacao()) {
+            List<Conta> copias = new ArrayList<>();
+            for (Conta conta : alteradas) {
+                copias.add(new Conta(conta.getNumero(), conta.getSaldo()));
+            }
+            // o retorno não é tratado porque as persistências exibem suas
+            // próprias mensagens de erro e todas as contas são salvas de novo
+            // ao finalizar a agência
+            persistencia.salvarContas(copias);
+        }
+    }
+
+    /*
+     * Se a conta é quente e o seu saldo não é suficiente para debitar o valor
+     * passado, deposita nela o total das suas células de depósito. Deve ser
+     * chamado com a conta travada.
+     */
+    private void consolidarDepositos(Conta conta, double valor) {
+        ContasQuentes quentes = contasQuentes;
+        if (quentes != null && conta.getSaldo() < valor) {
+            double depositos = quentes.retirarDepositos(conta.getNumero());
+            if (depositos != 0) {
+                conta.depositar(depositos);
+            }
+        }
+    }
+
+    /*
+     * Registra e salva o saldo de uma conta se ele foi alterado pela
+     * consolidação dos depósitos (usado quando a operação que consolidou não
+     * foi concluída). Deve ser chamado com a conta travada.
+     */
+    private void registrarConsolidacao(Conta conta, double saldoAnterior) {
+        if (conta.getSaldo() != saldoAnterior) {
+            registrarAlteracao(conta, saldoAnterior);
+            salvarAlteracoes(conta);
+        }
+    }
+
+    /*
+     * Deposita nas contas quentes o total das suas células de depósito,
+     * apenas em memória. Deve ser chamado com a trava da agência (em qualquer
+     * modo). Retorna as contas alteradas, que devem ser salvas com
+     * salvarConsolidadas depois de a trava ser liberada.
+     */
+    private List<Conta> consolidarContasQuentes() {
+        List<Conta> alteradas = new ArrayList<>();
+        ContasQuentes quentes = contasQuentes;
+        if (quentes != null) {
+            for (int numero : quentes.getNumeros()) {
+                Conta conta = contas.get(numero);
+                synchronized (conta) {
+                    double saldoAnterior = conta.getSaldo();
+                    consolidarDepositos(conta, Double.POSITIVE_INFINITY);
+                    if (conta.getSaldo() != saldoAnterior) {
+                        registrarAlteracao(conta, saldoAnterior);
+                        alteradas.add(conta);
+                    }
+                }
+            }
+        }
+        return alteradas;
+    }
+
+    /*
+     * Salva (e replica) as contas alteradas pela consolidação, travando uma
+     * de cada vez. É chamado sem a trava da agência, para que a escrita na
+     * persistência não segure as demais operações; como o saldo salvo é o
+     * atual, lido com a conta travada, ele nunca substitui o de uma operação
+     * posterior.
+     */
+    private void salvarConsolidadas(List<Conta> consolidadas) {
+        for (Conta conta : consolidadas) {
+            synchronized (conta) {
+                salvarAlteracoes(conta);
+            }
+        }
+    }
+
+    /*
+     * Consolida os depósitos das contas quentes e rebaixa as que receberam
+     * poucos depósitos (executado periodicamente pela thread das contas
+     * quentes)
+     */
+    private void atualizarContasQuentes() {
+        List<Conta> consolidadas;
+        int faixa = trava.travarOperacao();
+        try {
+            consolidadas = consolidarContasQuentes();
+        } finally {
+            trava.liberarOperacao(faixa);
+        }
+        salvarConsolidadas(consolidadas);
+
+        List<Integer> frias = contasQuentes.encerrarIntervalo();
+        if (!frias.isEmpty()) {
+            // o rebaixamento é feito sem nenhuma operação em andamento, para
+            // que nenhum depósito caia nas células depois de elas serem
+            // consolidadas pela última vez
+            List<Conta> rebaixadas = new ArrayList<>();
+            trava.travarTudo();
+            try {
+                for (int numero : frias) {
+                    Conta conta = contas.get(numero);
+                    synchronized (conta) {
+                        double saldoAnterior = conta.getSaldo();
+                        conta.depositar(contasQuentes.rebaixar(numero));
+                        if (conta.getSaldo() != saldoAnterior) {
+                            registrarAlteracao(conta, saldoAnterior);
+                            rebaixadas.add(conta);
+                        }
+                    }
+                }
+            } finally {
+                trava.liberarTudo();
+            }
+            salvarConsolidadas(rebaixadas);
+        }
+    }
+
+    /**
+     * Habilita as contas quentes: contas cujos depósitos disputam muito a
+     * trava da conta passam a receber depósitos sem travá-la, em células de
+     * depósito (veja ContasQuentes), e voltam a ser contas comuns quando os
+     * depósitos diminuem.
+     * 
+     * O total das células é depositado de fato na conta a cada intervalo,
+     * antes de saques, transferências e do processamento de fim de mês que
+     * precisem dele e no instante de cada visão (e, portanto, de cada
+     * snapshot). Até lá, os depósitos das células ainda não aparecem nas
+     * estatísticas, no índice de saldos e na persistência.
+     * 
+     * @param intervaloMs Intervalo, em milissegundos, entre as consolidações
+     *                    das células (também usado para decidir as promoções e
+     *                    os rebaixamentos).
+     */
+    public synchronized void habilitarContasQuentes(long intervaloMs) {
+        if (contasQuentes != null) {
+            return;
+        }
+        contasQuentes = new ContasQuentes();
+        executorContasQuentes = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "contas-quentes-agencia-" + nome);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executorContasQuentes.scheduleWithFixedDelay(this::atualizarContasQuentes, intervaloMs, intervaloMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Se a replicação foi iniciada, envia para a réplica os novos saldos das
+     * contas alteradas por uma operação. Deve ser chamado com as contas
+     * travadas, para que as alterações de uma mesma conta sejam enviadas na
+     * ordem em que aconteceram.
+     */
+    private void replicarAlteracoes(Conta... alteradas) {
+        ReplicacaoPrimaria replicacaoAtual = replicacao;
+        if (replicacaoAtual != null) {
+            replicacaoAtual.registrar(alteradas);
+        }
+    }
+
+    /**
+     * Inicia a replicação da agência: uma réplica (veja ReplicaSeguidora),
+     * executando em outro processo da mesma máquina, pode se conectar na porta
+     * passada para receber as contas e, depois, cada operação realizada.
+     * 
+     * @param porta Porta local onde a réplica se conectará.
+     */
+    public void iniciarReplicacao(int porta) throws IOException {
+        replicacao = new ReplicacaoPrimaria(porta, this::tirarSnapshot);
+    }
+
+    /**
+     * Salva, em segundo plano, um snapshot das contas na persistência passada.
+     * 
+     * As operações continuam acontecendo enquanto o snapshot é salvo; ainda
+     * assim, as contas são salvas exatamente como estavam no instante em que
+     * o snapshot foi iniciado. Apenas um snapshot é salvo de cada vez.
+     * 
+     * @param destino Persistência onde o snapshot será salvo.
+     * @return Resultado futuro: true se o snapshot foi salvo corretamente e
+     *         false caso contrário.
+     */
+    public CompletableFuture<Boolean> salvarSnapshot(Persistencia destino) {
+        return CompletableFuture.supplyAsync(() -> destino.salvarContas(tirarSnapshot().getContas()),
+                executorSnapshots);
+    }
+
+    /**
+     * Agenda o salvamento periódico de snapshots na persistência passada.
+     * 
+     * @param destino           Persistência onde os snapshots serão salvos.
+     * @param intervaloSegundos Intervalo, em segundos, entre os snapshots.
+     */
+    public void agendarSnapshots(Persistencia destino, long intervaloSegundos) {
+        executorSnapshots.scheduleWithFixedDelay(() -> {
+            if (!destino.salvarContas(tirarSnapshot().getContas())) {
+                RegistroEventos.erro("Agencia", "Houve um erro ao tentar salvar o snapshot da agência " + nome, null);
+            }
+        }, intervaloSegundos, intervaloSegundos, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Abre uma visão das contas no instante atual: enquanto a visão estiver
+     * aberta, ela lê os saldos desse instante, mesmo que as operações
+     * continuem alterando as contas. A visão deve ser fechada (de preferência
+     * com try-with-resources) ao final da consulta.
+     * 
+     * @return Visão das contas.
+     */
+    public VisaoAgencia abrirVisao() {
+        // Todas as faixas da trava são travadas apenas para marcar o instante
+        // da visão (quando não há nenhuma operação pela metade); a partir daí
+        // as operações continuam normalmente, preservando no snapshot os
+        // saldos que alterarem
+        SnapshotAgencia snapshot;
+        List<Conta> consolidadas;
+        trava.travarTudo();
+        try {
+            // os depósitos das contas quentes ainda nas células também fazem
+            // parte do instante da visão (com a trava, eles são apenas somados
+            // às contas; o salvamento é feito depois de liberá-la)
+            consolidadas = consolidarContasQuentes();
+            ReplicacaoPrimaria replicacaoAtual = replicacao;
+            snapshot = new SnapshotAgencia(ultimoNumeroConta.get(),
+                    replicacaoAtual != null ? replicacaoAtual.getUltimaSequencia() : 0);
+            snapshotsAtivos.add(snapshot);
+        } finally {
+            trava.liberarTudo();
+        }
+        salvarConsolidadas(consolidadas);
+        return new VisaoAgencia(contas, snapshot, () -> snapshotsAtivos.remove(snapshot));
+    }
+
+    /*
+     * Tira um snapshot das contas, com cópias delas com os saldos do instante
+     * do snapshot
+     */
+    private SnapshotAgencia tirarSnapshot() {
+        try (VisaoAgencia visao = abrirVisao()) {
+            SnapshotAgencia snapshot = visao.getSnapshot();
+            visao.percorrerContas(snapshot.getContas()::add);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Habilita a árvore de Merkle dos saldos (veja ArvoreMerkle), mantida a
+     * cada operação, que permite comparar as contas da agência com as contas
+     * persistidas sem percorrer todas elas.
+     */
+    public synchronized void habilitarArvoreMerkle() {
+        if (arvore != null) {
+            return;
+        }
+        arvore = new ArvoreMerkle();
+        // as contas que já existem entram na árvore na primeira atualização
+        arvore.marcarAte(ultimoNumeroConta.get());
+    }
+
+    /**
+     * Retorna a árvore de Merkle dos saldos, atualizada com os saldos do
+     * instante atual (veja abrirVisao).
+     * 
+     * @return Árvore atualizada ou null se ela não foi habilitada.
+     */
+    public ArvoreMerkle getArvoreMerkle() {
+        ArvoreMerkle arvoreAtual = arvore;
+        if (arvoreAtual == null) {
+            return null;
+        }
+        try (VisaoAgencia visao = abrirVisao()) {
+            SnapshotAgencia snapshot = visao.getSnapshot();
+            arvoreAtual.atualizar((numeroInicial, numeroFinal, consumidor) -> {
+                int ultimo = Math.min(numeroFinal, ultimoNumeroConta.get());
+                for (int numero = Math.max(numeroInicial, 1); numero <= ultimo; numero++) {
+                    Conta conta = contas.get(numero);
+                    if (conta == null) {
+                        continue;
+                    }
+                    // a marcação de uma conta alterada depois do instante da
+                    // visão pode ter sido retirada por esta atualização, então
+                    // ela é marcada de novo
+                    if (!snapshot.contem(numero)) {
+                        arvoreAtual.marcar(numero);
+                        continue;
+                    }
+                    synchronized (conta) {
+                        double saldo = snapshot.lerSaldo(conta);
+                        if (saldo != conta.getSaldo()) {
+                            arvoreAtual.marcar(numero);
+                        }
+                        consumidor.accept(new Conta(numero, saldo));
+                    }
+                }
+                return true;
+            });
+        }
+        return arvoreAtual;
+    }
+
+    /**
+     * Verifica se as contas persistidas são iguais às contas da agência e
+     * salva de novo as que estiverem diferentes.
+     * 
+     * As árvores de Merkle da agência e da persistência são comparadas e só
+     * as faixas de contas em que elas diferem são lidas da persistência. Se a
+     * persistência não mantém a sua árvore (veja PersistenciaComArvore), a
+     * árvore dela é construída percorrendo todas as contas persistidas.
+     * 
+     * As contas diferentes são salvas com os saldos atuais (se a persistência
+     * aceita salvamento parcial) ou todas as contas são salvas de novo. Uma
+     * persistência que ainda não foi criada é considerada vazia.
+     * 
+     * As contas persistidas que não existem na agência são informadas em um
+     * aviso. Nas persistências sem salvamento parcial elas desaparecem quando
+     * todas as contas são salvas de novo; nas demais elas são mantidas, pois a
+     * interface Persistencia não permite remover contas.
+     * 
+     * As leituras e os salvamentos são feitos sem a conta travada, para não
+     * segurar as operações sobre ela; a conta é travada apenas para comparar
+     * e copiar o seu saldo (veja repararConta).
+     * 
+     * @return Contas que estavam diferentes na persistência, com os saldos da
+     *         agência, ou null se não foi possível verificar a persistência.
+     */
+    public List<Conta> reconciliarPersistencia() {
+        habilitarArvoreMerkle();
+        ArvoreMerkle arvoreAgencia = getArvoreMerkle();
+        boolean criada = persistencia.criada();
+        boolean parcial = persistencia.salvamentoParcial();
+        ArvoreMerkle arvorePersistencia;
+        if (!criada) {
+            arvorePersistencia = new ArvoreMerkle();
+        } else if (persistencia instanceof PersistenciaComArvore) {
+            arvorePersistencia = ((PersistenciaComArvore) persistencia).getArvoreMerkle();
+        } else {
+            arvorePersistencia = new ArvoreMerkle();
+            if (!arvorePersistencia.reconstruir(persistencia::percorrerContas)) {
+                arvorePersistencia = null;
+            }
+        }
+        if (arvorePersistencia == null) {
+            return null;
+        }
+
+        List<Conta> diferentes = new ArrayList<>();
+        int sobrando = 0;
+        for (int[] faixa : arvoreAgencia.diferencas(arvorePersistencia)) {
+            Map<Integer, Double> persistidas = new HashMap<>();
+            if (criada && !persistencia.percorrerContas(faixa[0], faixa[1],
+                    conta -> persistidas.put(conta.getNumero(), conta.getSaldo()))) {
+                return null;
+            }
+            int ultimo = Math.min(faixa[1], ultimoNumeroConta.get());
+            for (int numero = Math.max(faixa[0], 1); numero <= ultimo; numero++) {
+                Conta conta = contas.get(numero);
+                if (conta == null) {
+                    continue;
+                }
+                Double persistido = persistidas.remove(numero);
+                Conta copia = null;
+                synchronized (conta) {
+                    if (persistido == null || persistido != conta.getSaldo()) {
+                        copia = new Conta(conta.getNumero(), conta.getSaldo());
+                    }
+                }
+                if (copia != null && parcial) {
+                    copia = repararConta(conta);
+                }
+                if (copia != null) {
+                    diferentes.add(copia);
+                }
+            }
+            sobrando += persistidas.size();
+        }
+        if (sobrando > 0) {
+            RegistroEventos.aviso("Agencia", "Há " + sobrando + " contas persistidas que não existem na agência "
+                    + nome + (parcial ? " (elas foram mantidas)" : ""));
+        }
+        if ((!diferentes.isEmpty() || sobrando > 0) && !parcial) {
+            salvarSnapshot(persistencia).join();
+        }
+        return diferentes;
+    }
+
+    /*
+     * Lê de novo uma conta que parece diferente na persistência (ela pode ter
+     * sido alterada e salva depois da leitura da faixa) e, se ela está mesmo
+     * diferente, salva o seu saldo atual. Retorna uma cópia da conta com o
+     * saldo que estava diferente ou null se ela já estava correta.
+     * 
+     * A leitura e o salvamento são feitos sem a conta travada. Se uma operação
+     * alterar a conta enquanto ela é salva, o salvamento desta reconciliação
+     * pode chegar à persistência depois do salvamento da operação; por isso,
+     * depois de salvar, o saldo é conferido com a conta travada e, se mudou, o
+     * saldo atual é salvo de novo.
+     */
+    private Conta repararConta(Conta conta) {
+        Conta salva = persistencia.buscarConta(conta.getNumero());
+        Conta copia;
+        synchronized (conta) {
+            if (salva != null && salva.getSaldo() == conta.getSaldo()) {
+                return null;
+            }
+            copia = new Conta(conta.getNumero(), conta.getSaldo());
+        }
+        Conta aSalvar = copia;
+        while (persistencia.salvarContas(List.of(aSalvar))) {
+            synchronized (conta) {
+                if (conta.getSaldo() == aSalvar.getSaldo()) {
+                    break;
+                }
+                aSalvar = new Conta(conta.getNumero(), conta.getSaldo());
+            }
+        }
+        return copia;
+    }
+
+    /**
+     * Retorna um relatório da agência com os dados das contas
+     */
+    public String gerarRelatorio() {
+        // o relatório é gerado a partir de uma visão, para que os saldos sejam
+        // todos do mesmo instante sem impedir as operações
+        StringBuilder relatorio = new StringBuilder("\n==== Agência " + nome + " ====\n");
+        int tamanhoCabecalho = relatorio.length();
+        try (VisaoAgencia visao = abrirVisao()) {
+            visao.percorrerContas(conta -> relatorio.append(conta.extrato()).append('\n'));
+        }
+        if (relatorio.length() == tamanhoCabecalho) {
+            relatorio.append("Não há contas nessa agência.\n");
+        }
+        return relatorio.toString();
     }
 
     /**
@@ -139,20 +926,34 @@ public class Agencia {
      * @return true se as contas foram salvas corretamente e false caso contrário
      */
     public boolean finalizar() {
-        // Salva as contas antes de finalizar
-        return persistencia.salvarContas(new ArrayList<>(contas.values()));
+        // Salva as contas antes de finalizar (depois de qualquer snapshot que
+        // esteja em andamento), encerra a thread de snapshots e finaliza a
+        // persistência
+        if (executorContasQuentes != null) {
+            executorContasQuentes.shutdown();
+        }
+        // o snapshot consolida os depósitos das contas quentes
+        boolean salvou = salvarSnapshot(persistencia).join();
+        executorSnapshots.shutdown();
+        boolean finalizou = persistencia.finalizar();
+        // a replicação é encerrada depois da persistência, para que uma
+        // réplica lenta não atrase a gravação das contas
+        if (replicacao != null) {
+            replicacao.finalizar();
+        }
+        return finalizou && salvou;
     }
 
-    /**
-     * Retorna o número a ser usada para a próxima conta
+    /*
+     * Retorna o maior número de conta existente (zero se não há contas)
      */
-    private int proximoNumeroConta() {
+    private int maiorNumeroConta() {
         int maior = 0;
         for (int numero : contas.keySet()) {
             if (numero > maior) {
                 maior = numero;
             }
         }
-        return maior + 1;
+        return maior;
     }
 }
\ No newline at end of file
@@ -1,3 +1,8 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 /**
  * Classe principal da aplicação.
  */
@@ -7,6 +12,20 @@ public class App {
      */
     public static void main(String[] args) throws Exception {
 
+        // As operações, os avisos e os erros são registrados em segundo plano
+        // no arquivo eventos.log (trocado por um novo a cada 10 MB)
+        RegistroEventos.iniciar("eventos.log", 10 << 20);
+        try {
+            executar(args);
+        } finally {
+            RegistroEventos.finalizar();
+        }
+    }
+
+    /*
+     * Cria a persistência e executa a interface de usuário
+     */
+    private static void executar(String[] args) throws Exception {
         // A interface de usuário é criada passando-se o nome da agência e a
         // persistência a ser utilizada
         // Comente/descomente as linhas abaixo para usar diferentes tipos de
@@ -18,6 +37,59 @@ public class App {
         // persistencia = new PersistenciaArquivoBinario();
         persistencia = new PersistenciaBancoDeDados();
 
+        // Qualquer uma das persistências pode ser decorada com a escrita
+        // atrasada: as contas são salvas em segundo plano a cada 1 segundo
+        // (com até 10000 contas pendentes)
+        // persistencia = new PersistenciaEscritaAtrasada(persistencia, 1000, 10000);
+
+        // Ou as contas podem ficar em camadas: as usadas recentemente em um
+        // arquivo mapeado em memória e as demais no banco de dados
+        // persistencia = new PersistenciaEmCamadas();
+
+        // Qualquer persistência também pode ter um filtro dos números das
+        // contas, que recusa buscas por contas inexistentes sem acessá-la
+        // persistencia = new PersistenciaComFiltro(persistencia);
+
+        // Ou manter uma árvore de Merkle das contas salvas, para que
+        // Agencia.reconciliarPersistencia compare as contas persistidas com as
+        // da agência lendo apenas as faixas diferentes
+        // persistencia = new PersistenciaComArvore(persistencia);
+
+        // Com o argumento "relatorio", o relatório e o resumo das contas são
+        // gerados diretamente da persistência, sem criar a agência: as contas
+        // são lidas aos poucos e os totais são calculados pela própria
+        // persistência (no banco de dados, pelo SQL)
+        if (args.length > 0 && args[0].equals("relatorio")) {
+            if (!persistencia.criada()) {
+                System.out.println("Ainda não há contas salvas.");
+                return;
+            }
+            boolean leu = RelatorioPersistencia.imprimirRelatorio("UFLA", persistencia, System.out);
+            System.out.println(RelatorioPersistencia.gerarResumo(persistencia));
+            if (!leu) {
+                System.out.println("Não foi possível ler todas as contas!");
+            }
+            persistencia.finalizar();
+            return;
+        }
+
+        // Com os argumentos "lote [comandos [resultados]]", as operações são
+        // lidas do arquivo de comandos (ou da entrada padrão, se ele for
+        // omitido ou for "-") e os resultados escritos no arquivo de
+        // resultados (ou na saída padrão), sem interação com o usuário
+        if (args.length > 0 && args[0].equals("lote")) {
+            InterfaceUsuario iuAgencia = new InterfaceUsuario("Agência UFLA", persistencia, true);
+            // apenas os arquivos abertos aqui são fechados ao final (a entrada
+            // e a saída padrão continuam abertas)
+            try (InputStream arquivoComandos = args.length > 1 && !args[1].equals("-")
+                    ? new FileInputStream(args[1]) : null;
+                    OutputStream arquivoResultados = args.length > 2 ? new FileOutputStream(args[2]) : null) {
+                iuAgencia.executarLote(arquivoComandos != null ? arquivoComandos : System.in,
+                        arquivoResultados != null ? arquivoResultados : System.out);
+            }
+            return;
+        }
+
         InterfaceUsuario iuAgencia = new InterfaceUsuario("Agência UFLA", persistencia);
         iuAgencia.exibir();
     }
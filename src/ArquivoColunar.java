@@ -0,0 +1,508 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Formato binário compacto para guardar contas em arquivo.
+ *
+ * Em vez de guardar objetos Conta serializados (que carregam a descrição da
+ * classe e são lidos por reflexão), as contas são guardadas em colunas: uma
+ * coluna com os números e outra com os saldos. As contas são agrupadas em
+ * blocos e cada bloco é compactado separadamente.
+ *
+ * Organização do arquivo:
+ *
+ * <pre>
+ * cabeçalho: ASSINATURA (int), VERSAO (byte)
+ * blocos:    quantidade de contas (int), número da primeira conta (int),
+ *            codificação dos saldos (byte), tamanho compactado (int),
+ *            dados compactados
+ * fim:       0 (int)
+ * índice:    quantidade de blocos (int) e, para cada bloco: menor número
+ *            (int), maior número (int), posição no arquivo (long)
+ * rodapé:    posição do índice (long), ASSINATURA (int)
+ * </pre>
+ *
+ * Dentro de um bloco, os números são guardados como a diferença para o número
+ * anterior em um inteiro de tamanho variável (varint), que ocupa um único
+ * byte para contas em sequência. Os saldos são guardados em centavos (ponto
+ * fixo), também como varint, quando todos os saldos do bloco têm no máximo
+ * duas casas decimais; caso contrário, são guardados como double.
+ *
+ * As classes Escritor e Leitor permitem gravar e ler as contas uma a uma, sem
+ * precisar ter todas elas em memória. O índice permite ler apenas os blocos
+ * que contêm um intervalo de números de conta (veja percorrerIntervalo).
+ */
+public class ArquivoColunar {
+    // assinatura que identifica o formato (os bytes "AGC1")
+    public static final int ASSINATURA = 0x41474331;
+    // versão do formato
+    public static final byte VERSAO = 1;
+    // quantidade máxima de contas em um bloco
+    public static final int TAMANHO_BLOCO = 65536;
+    // codificação dos saldos em centavos (varint)
+    private static final byte SALDOS_CENTAVOS = 0;
+    // codificação dos saldos como double
+    private static final byte SALDOS_DOUBLE = 1;
+    // maior saldo, em módulo, que pode ser guardado em centavos sem perda
+    private static final double MAIOR_SALDO_CENTAVOS = 1e13;
+
+    /**
+     * Retorna se o arquivo passado está no formato colunar.
+     *
+     * @param nomeArquivo Nome do arquivo.
+     * @return true se o arquivo começa com a assinatura do formato.
+     */
+    public static boolean formatoColunar(String nomeArquivo) {
+        try (DataInputStream entrada = new DataInputStream(new FileInputStream(nomeArquivo))) {
+            return entrada.readInt() == ASSINATURA;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lê o índice de blocos de um arquivo no formato colunar.
+     *
+     * @param nomeArquivo Nome do arquivo.
+     * @return Para cada bloco, um vetor com o menor número, o maior número e a
+     *         posição do bloco no arquivo.
+     */
+    public static List<long[]> lerIndice(String nomeArquivo) throws IOException {
+        try (RandomAccessFile arquivo = new RandomAccessFile(nomeArquivo, "r")) {
+            // o rodapé fica nos últimos 12 bytes do arquivo
+            arquivo.seek(arquivo.length() - 12);
+            long posicaoIndice = arquivo.readLong();
+            if (arquivo.readInt() != ASSINATURA) {
+                throw new IOException("O arquivo " + nomeArquivo + " não possui o índice do formato colunar");
+            }
+
+            arquivo.seek(posicaoIndice);
+            DataInputStream entrada = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(arquivo.getChannel())));
+            int quantidadeBlocos = entrada.readInt();
+            List<long[]> indice = new ArrayList<>(quantidadeBlocos);
+            for (int i = 0; i < quantidadeBlocos; i++) {
+                indice.add(new long[] { entrada.readInt(), entrada.readInt(), entrada.readLong() });
+            }
+            return indice;
+        }
+    }
+
+    /**
+     * Percorre as contas com número entre os valores passados (inclusive),
+     * usando o índice para ler apenas os blocos que podem conter essas contas.
+     *
+     * @param nomeArquivo   Nome do arquivo.
+     * @param numeroInicial Menor número de conta.
+     * @param numeroFinal   Maior número de conta.
+     * @param consumidor    Recebe as contas encontradas.
+     */
+    public static void percorrerIntervalo(String nomeArquivo, int numeroInicial, int numeroFinal,
+            Consumer<Conta> consumidor) throws IOException {
+        for (long[] bloco : lerIndice(nomeArquivo)) {
+            if (bloco[1] < numeroInicial || bloco[0] > numeroFinal) {
+                continue;
+            }
+            try (FileInputStream arquivo = new FileInputStream(nomeArquivo);
+                    Leitor leitor = new Leitor(posicionar(arquivo, bloco[2]), false)) {
+                leitor.lerBloco();
+                for (int i = 0; i < leitor.quantidade; i++) {
+                    int numero = leitor.numeros[i];
+                    if (numero >= numeroInicial && numero <= numeroFinal) {
+                        consumidor.accept(new Conta(numero, leitor.saldos[i]));
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Posiciona o arquivo no byte passado, retornando o próprio arquivo
+     */
+    private static FileInputStream posicionar(FileInputStream arquivo, long posicao) throws IOException {
+        arquivo.getChannel().position(posicao);
+        return arquivo;
+    }
+
+    /**
+     * Grava contas no formato colunar, uma a uma.
+     */
+    public static class Escritor implements AutoCloseable {
+        // arquivo sendo gravado
+        private final DataOutputStream saida;
+        // posição atual no arquivo
+        private long posicao;
+        // números e saldos das contas do bloco atual
+        private final int[] numeros;
+        private final double[] saldos;
+        // quantidade de contas no bloco atual
+        private int quantidade;
+        // dados do índice: menor número, maior número e posição de cada bloco
+        private final List<long[]> indice;
+        // compactador, reaproveitado entre os blocos
+        private final Deflater compactador;
+
+        /**
+         * Cria o arquivo e grava o cabeçalho.
+         *
+         * @param nomeArquivo Nome do arquivo a ser gravado.
+         */
+        public Escritor(String nomeArquivo) throws IOException {
+            this(new FileOutputStream(nomeArquivo));
+        }
+
+        /**
+         * Grava o cabeçalho no fluxo de saída passado.
+         *
+         * @param saida Fluxo onde as contas serão gravadas.
+         */
+        public Escritor(OutputStream saida) throws IOException {
+            this.saida = new DataOutputStream(new BufferedOutputStream(saida, 1 << 16));
+            numeros = new int[TAMANHO_BLOCO];
+            saldos = new double[TAMANHO_BLOCO];
+            quantidade = 0;
+            indice = new ArrayList<>();
+            compactador = new Deflater(Deflater.BEST_SPEED);
+
+            this.saida.writeInt(ASSINATURA);
+            this.saida.writeByte(VERSAO);
+            posicao = 5;
+        }
+
+        /**
+         * Grava uma conta.
+         *
+         * @param conta Conta a ser gravada.
+         */
+        public void escrever(Conta conta) throws IOException {
+            escrever(conta.getNumero(), conta.getSaldo());
+        }
+
+        /**
+         * Grava uma conta a partir do número e do saldo.
+         *
+         * @param numero Número da conta.
+         * @param saldo  Saldo da conta.
+         */
+        public void escrever(int numero, double saldo) throws IOException {
+            numeros[quantidade] = numero;
+            saldos[quantidade] = saldo;
+            quantidade++;
+            if (quantidade == TAMANHO_BLOCO) {
+                gravarBloco();
+            }
+        }
+
+        /**
+         * Grava o último bloco, o índice e o rodapé e fecha o arquivo.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (quantidade > 0) {
+                    gravarBloco();
+                }
+                saida.writeInt(0);
+                posicao += 4;
+
+                long posicaoIndice = posicao;
+                saida.writeInt(indice.size());
+                for (long[] bloco : indice) {
+                    saida.writeInt((int) bloco[0]);
+                    saida.writeInt((int) bloco[1]);
+                    saida.writeLong(bloco[2]);
+                }
+                saida.writeLong(posicaoIndice);
+                saida.writeInt(ASSINATURA);
+            } finally {
+                compactador.end();
+                saida.close();
+            }
+        }
+
+        /*
+         * Codifica, compacta e grava o bloco atual
+         */
+        private void gravarBloco() throws IOException {
+            ByteArrayOutputStream colunas = new ByteArrayOutputStream(quantidade * 3);
+
+            // coluna de números: diferença para o número anterior
+            int anterior = numeros[0];
+            for (int i = 0; i < quantidade; i++) {
+                escreverVarint(colunas, zigzag(numeros[i] - anterior));
+                anterior = numeros[i];
+            }
+
+            // coluna de saldos: em centavos, se possível, ou como double
+            byte codificacao = saldosEmCentavos() ? SALDOS_CENTAVOS : SALDOS_DOUBLE;
+            for (int i = 0; i < quantidade; i++) {
+                if (codificacao == SALDOS_CENTAVOS) {
+                    escreverVarint(colunas, zigzag(Math.round(saldos[i] * 100)));
+                } else {
+                    long bits = Double.doubleToLongBits(saldos[i]);
+                    for (int deslocamento = 56; deslocamento >= 0; deslocamento -= 8) {
+                        colunas.write((int) (bits >>> deslocamento));
+                    }
+                }
+            }
+
+            byte[] compactado = compactar(colunas.toByteArray());
+
+            int menor = numeros[0];
+            int maior = numeros[0];
+            for (int i = 1; i < quantidade; i++) {
+                menor = Math.min(menor, numeros[i]);
+                maior = Math.max(maior, numeros[i]);
+            }
+            indice.add(new long[] { menor, maior, posicao });
+
+            saida.writeInt(quantidade);
+            saida.writeInt(numeros[0]);
+            saida.writeByte(codificacao);
+            saida.writeInt(compactado.length);
+            saida.write(compactado);
+            posicao += 13 + compactado.length;
+            quantidade = 0;
+        }
+
+        /*
+         * Retorna se todos os saldos do bloco atual podem ser guardados em
+         * centavos sem perder precisão
+         */
+        private boolean saldosEmCentavos() {
+            for (int i = 0; i < quantidade; i++) {
+                double saldo = saldos[i];
+                if (Math.abs(saldo) >= MAIOR_SALDO_CENTAVOS || Math.round(saldo * 100) / 100.0 != saldo) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Compacta os dados de um bloco
+         */
+        private byte[] compactar(byte[] dados) {
+            compactador.reset();
+            compactador.setInput(dados);
+            compactador.finish();
+            ByteArrayOutputStream compactado = new ByteArrayOutputStream(dados.length / 2 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!compactador.finished()) {
+                int tamanho = compactador.deflate(buffer);
+                compactado.write(buffer, 0, tamanho);
+            }
+            return compactado.toByteArray();
+        }
+    }
+
+    /**
+     * Lê, uma a uma, as contas gravadas no formato colunar.
+     */
+    public static class Leitor implements AutoCloseable {
+        // arquivo sendo lido
+        private final DataInputStream entrada;
+        // números e saldos das contas do bloco atual
+        private int[] numeros;
+        private double[] saldos;
+        // quantidade de contas no bloco atual e posição da próxima a ser lida
+        private int quantidade;
+        private int proxima;
+        // indica se todos os blocos já foram lidos
+        private boolean terminou;
+        // descompactador, reaproveitado entre os blocos
+        private final Inflater descompactador;
+
+        /**
+         * Abre o arquivo e confere o cabeçalho.
+         *
+         * @param nomeArquivo Nome do arquivo a ser lido.
+         */
+        public Leitor(String nomeArquivo) throws IOException {
+            this(new FileInputStream(nomeArquivo));
+        }
+
+        /**
+         * Confere o cabeçalho no fluxo de entrada passado.
+         *
+         * @param entrada Fluxo de onde as contas serão lidas.
+         */
+        public Leitor(InputStream entrada) throws IOException {
+            this(entrada, true);
+        }
+
+        /*
+         * Cria o leitor, conferindo o cabeçalho apenas se lerCabecalho for true
+         * (quando a leitura começa diretamente em um bloco, não há cabeçalho)
+         */
+        private Leitor(InputStream entrada, boolean lerCabecalho) throws IOException {
+            this.entrada = new DataInputStream(new BufferedInputStream(entrada, 1 << 16));
+            descompactador = new Inflater();
+            numeros = new int[0];
+            saldos = new double[0];
+            terminou = false;
+
+            if (!lerCabecalho) {
+                return;
+            }
+            if (this.entrada.readInt() != ASSINATURA) {
+                close();
+                throw new IOException("O arquivo não está no formato colunar");
+            }
+            byte versao = this.entrada.readByte();
+            if (versao != VERSAO) {
+                close();
+                throw new IOException("Versão " + versao + " do formato colunar não suportada");
+            }
+        }
+
+        /**
+         * Retorna a próxima conta do arquivo.
+         *
+         * @return A próxima conta ou null se não há mais contas.
+         */
+        public Conta proxima() throws IOException {
+            if (proxima == quantidade) {
+                if (terminou || !lerBloco()) {
+                    return null;
+                }
+            }
+            Conta conta = new Conta(numeros[proxima], saldos[proxima]);
+            proxima++;
+            return conta;
+        }
+
+        /**
+         * Fecha o arquivo.
+         */
+        @Override
+        public void close() throws IOException {
+            descompactador.end();
+            entrada.close();
+        }
+
+        /*
+         * Lê e descompacta o próximo bloco. Retorna false se não há mais blocos.
+         */
+        private boolean lerBloco() throws IOException {
+            int quantidadeBloco = entrada.readInt();
+            if (quantidadeBloco == 0) {
+                terminou = true;
+                return false;
+            }
+            int primeiro = entrada.readInt();
+            byte codificacao = entrada.readByte();
+            byte[] compactado = new byte[entrada.readInt()];
+            entrada.readFully(compactado);
+
+            byte[] dados = descompactar(compactado, quantidadeBloco);
+            if (numeros.length < quantidadeBloco) {
+                numeros = new int[quantidadeBloco];
+                saldos = new double[quantidadeBloco];
+            }
+
+            int[] posicao = { 0 };
+            int anterior = primeiro;
+            for (int i = 0; i < quantidadeBloco; i++) {
+                anterior += (int) desfazerZigzag(lerVarint(dados, posicao));
+                numeros[i] = anterior;
+            }
+            for (int i = 0; i < quantidadeBloco; i++) {
+                if (codificacao == SALDOS_CENTAVOS) {
+                    saldos[i] = desfazerZigzag(lerVarint(dados, posicao)) / 100.0;
+                } else {
+                    long bits = 0;
+                    for (int j = 0; j < 8; j++) {
+                        bits = (bits << 8) | (dados[posicao[0]++] & 0xFF);
+                    }
+                    saldos[i] = Double.longBitsToDouble(bits);
+                }
+            }
+
+            quantidade = quantidadeBloco;
+            proxima = 0;
+            return true;
+        }
+
+        /*
+         * Descompacta os dados de um bloco
+         */
+        private byte[] descompactar(byte[] compactado, int quantidadeBloco) throws IOException {
+            descompactador.reset();
+            descompactador.setInput(compactado);
+            ByteArrayOutputStream dados = new ByteArrayOutputStream(quantidadeBloco * 3);
+            byte[] buffer = new byte[1 << 16];
+            try {
+                while (!descompactador.finished()) {
+                    int tamanho = descompactador.inflate(buffer);
+                    if (tamanho == 0 && descompactador.needsInput()) {
+                        throw new IOException("Bloco do arquivo colunar incompleto");
+                    }
+                    dados.write(buffer, 0, tamanho);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bloco do arquivo colunar corrompido", e);
+            }
+            return dados.toByteArray();
+        }
+    }
+
+    /*
+     * Transforma um número com sinal em um sem sinal, de forma que números
+     * pequenos (positivos ou negativos) fiquem pequenos
+     */
+    private static long zigzag(long valor) {
+        return (valor << 1) ^ (valor >> 63);
+    }
+
+    /*
+     * Desfaz a transformação feita por zigzag
+     */
+    private static long desfazerZigzag(long valor) {
+        return (valor >>> 1) ^ -(valor & 1);
+    }
+
+    /*
+     * Escreve um número usando 7 bits por byte (o bit mais alto indica que há
+     * mais bytes)
+     */
+    private static void escreverVarint(ByteArrayOutputStream saida, long valor) {
+        while ((valor & ~0x7FL) != 0) {
+            saida.write((int) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        saida.write((int) valor);
+    }
+
+    /*
+     * Lê um número escrito por escreverVarint a partir da posição passada
+     * (que é atualizada)
+     */
+    private static long lerVarint(byte[] dados, int[] posicao) {
+        long valor = 0;
+        int deslocamento = 0;
+        byte atual;
+        do {
+            atual = dados[posicao[0]++];
+            valor |= (long) (atual & 0x7F) << deslocamento;
+            deslocamento += 7;
+        } while ((atual & 0x80) != 0);
+        return valor;
+    }
+}
@@ -0,0 +1,376 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * Árvore de Merkle (árvore de hashes) das contas, usada para verificar se
+ * dois conjuntos de contas (por exemplo, as contas da agência e as contas
+ * persistidas) são iguais sem comparar conta por conta.
+ *
+ * Os números das contas são divididos em faixas de tamanho fixo; cada faixa é
+ * uma folha da árvore, cujo hash combina os números e os saldos das contas da
+ * faixa. Cada nó acima das folhas guarda o hash dos seus dois filhos, então
+ * duas árvores com a mesma raiz têm (com altíssima probabilidade) as mesmas
+ * contas. Para encontrar as diferenças, basta descer apenas pelos nós com
+ * hashes diferentes: o custo é proporcional à quantidade de faixas diferentes
+ * vezes a altura da árvore.
+ *
+ * A árvore é mantida de forma incremental: quem altera uma conta apenas marca
+ * a sua folha (sem travar nada), e ao atualizar a árvore só as folhas
+ * marcadas são recalculadas, lendo as contas das suas faixas da fonte.
+ *
+ * Duas árvores só podem ser comparadas se estiverem atualizadas.
+ */
+public class ArvoreMerkle {
+    // quantidade de números de conta de cada folha
+    private final int CONTAS_POR_FOLHA = 64;
+    // quantidade de folhas de cada segmento das marcações
+    private final int FOLHAS_POR_SEGMENTO = 1 << 12;
+    // quantidade máxima de faixas consultadas separadamente em uma
+    // atualização; acima disso, uma única consulta cobre todas as folhas
+    // marcadas (mais barato para as fontes que percorrem todas as contas a
+    // cada consulta)
+    private final int MAXIMO_CONSULTAS = 16;
+
+    // marcações das folhas alteradas desde a última atualização, divididas em
+    // segmentos; quando a árvore cresce, apenas o vetor de segmentos é
+    // trocado, então nenhuma marcação feita ao mesmo tempo se perde
+    private volatile AtomicIntegerArray[] marcacoes;
+    // trava usada apenas para criar novos segmentos de marcações
+    private final Object travaMarcacoes;
+    // hashes dos nós: nos[1] é a raiz e as folhas ficam a partir de
+    // nos[capacidade] (acessados apenas com o objeto travado)
+    private long[] nos;
+    // quantidade de folhas da árvore (sempre uma potência de 2)
+    private int capacidade;
+
+    /**
+     * Fonte das contas usadas para calcular as folhas da árvore (por exemplo,
+     * uma persistência).
+     */
+    @FunctionalInterface
+    public interface Fonte {
+        /**
+         * Percorre as contas com número entre os valores passados (inclusive).
+         * Retorna true se todas as contas foram percorridas e false se houver
+         * algum problema.
+         */
+        boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor);
+    }
+
+    /**
+     * Cria uma árvore vazia (sem nenhuma conta).
+     */
+    public ArvoreMerkle() {
+        marcacoes = new AtomicIntegerArray[] { new AtomicIntegerArray(FOLHAS_POR_SEGMENTO) };
+        travaMarcacoes = new Object();
+        capacidade = 1;
+        nos = new long[2];
+    }
+
+    /**
+     * Marca a folha de uma conta como alterada, para que ela seja recalculada
+     * na próxima atualização. Pode ser chamado por várias threads ao mesmo
+     * tempo e depois de a conta ser alterada na fonte.
+     *
+     * @param numero Número da conta.
+     */
+    public void marcar(int numero) {
+        int folha = numero / CONTAS_POR_FOLHA;
+        int segmento = folha / FOLHAS_POR_SEGMENTO;
+        AtomicIntegerArray[] segmentos = marcacoes;
+        if (segmento >= segmentos.length) {
+            segmentos = criarSegmentos(segmento);
+        }
+        AtomicIntegerArray marcas = segmentos[segmento];
+        int posicao = folha % FOLHAS_POR_SEGMENTO;
+        // só escreve se a folha ainda não está marcada, para que operações
+        // seguidas nas mesmas contas não disputem a mesma posição de memória
+        if (marcas.get(posicao) == 0) {
+            marcas.set(posicao, 1);
+        }
+    }
+
+    /**
+     * Marca as folhas de todas as contas com número até o valor passado.
+     *
+     * @param ultimoNumero Maior número de conta a ser marcado.
+     */
+    public void marcarAte(int ultimoNumero) {
+        for (int folha = 0; folha <= ultimoNumero / CONTAS_POR_FOLHA; folha++) {
+            marcar(folha * CONTAS_POR_FOLHA);
+        }
+    }
+
+    /**
+     * Atualiza a árvore, recalculando as folhas marcadas a partir das contas
+     * da fonte.
+     *
+     * @param fonte Fonte das contas.
+     * @return true se a árvore foi atualizada e false se houve algum problema
+     *         ao percorrer as contas (as folhas continuam marcadas).
+     */
+    public synchronized boolean atualizar(Fonte fonte) {
+        // as marcações são retiradas antes de as contas serem lidas: uma
+        // conta alterada durante a leitura marca a folha de novo
+        int[] folhas = retirarMarcacoes();
+        if (folhas.length == 0) {
+            return true;
+        }
+        long[] hashes = new long[folhas.length];
+        Consumer<Conta> acumular = conta -> {
+            int i = Arrays.binarySearch(folhas, conta.getNumero() / CONTAS_POR_FOLHA);
+            if (i >= 0) {
+                hashes[i] += espalhar(conta);
+            }
+        };
+
+        // folhas marcadas consecutivas são lidas em uma só consulta
+        List<int[]> faixas = new ArrayList<>();
+        for (int i = 0; i < folhas.length; i++) {
+            if (faixas.isEmpty() || faixas.get(faixas.size() - 1)[1] != folhas[i] - 1) {
+                faixas.add(new int[] { folhas[i], folhas[i] });
+            } else {
+                faixas.get(faixas.size() - 1)[1] = folhas[i];
+            }
+        }
+        if (faixas.size() > MAXIMO_CONSULTAS) {
+            faixas = List.of(new int[] { folhas[0], folhas[folhas.length - 1] });
+        }
+        for (int[] faixa : faixas) {
+            if (!fonte.percorrerContas(faixa[0] * CONTAS_POR_FOLHA, ultimoNumero(faixa[1]), acumular)) {
+                for (int folha : folhas) {
+                    marcar(folha * CONTAS_POR_FOLHA);
+                }
+                return false;
+            }
+        }
+
+        if (folhas[folhas.length - 1] >= capacidade) {
+            long[] atuais = Arrays.copyOfRange(nos, capacidade, 2 * capacidade);
+            redimensionar(atuais, folhas[folhas.length - 1] + 1);
+        }
+        int[] posicoes = new int[folhas.length];
+        for (int i = 0; i < folhas.length; i++) {
+            posicoes[i] = capacidade + folhas[i];
+            nos[posicoes[i]] = hashes[i];
+        }
+        // recalcula os nós acima das folhas alteradas, um nível de cada vez
+        // (cada nó uma única vez, mesmo que vários filhos tenham mudado)
+        int quantidade = posicoes.length;
+        while (posicoes[0] > 1) {
+            int pais = 0;
+            for (int i = 0; i < quantidade; i++) {
+                int pai = posicoes[i] >> 1;
+                if (pais == 0 || posicoes[pais - 1] != pai) {
+                    posicoes[pais++] = pai;
+                }
+            }
+            for (int i = 0; i < pais; i++) {
+                nos[posicoes[i]] = combinar(nos[2 * posicoes[i]], nos[2 * posicoes[i] + 1]);
+            }
+            quantidade = pais;
+        }
+        return true;
+    }
+
+    /**
+     * Reconstrói a árvore inteira a partir de todas as contas da fonte
+     * (percorridas uma única vez), descartando as marcações.
+     *
+     * @param fonte Fonte das contas.
+     * @return true se a árvore foi reconstruída e false se houve algum
+     *         problema ao percorrer as contas (todas as folhas ficam marcadas).
+     */
+    public synchronized boolean reconstruir(Fonte fonte) {
+        retirarMarcacoes();
+        long[][] folhas = { new long[capacidade] };
+        boolean percorreu = fonte.percorrerContas(0, Integer.MAX_VALUE, conta -> {
+            int folha = conta.getNumero() / CONTAS_POR_FOLHA;
+            if (folha >= folhas[0].length) {
+                folhas[0] = Arrays.copyOf(folhas[0], Math.max(folha + 1, 2 * folhas[0].length));
+            }
+            folhas[0][folha] += espalhar(conta);
+        });
+        if (!percorreu) {
+            marcarAte(ultimoNumero(capacidade - 1));
+            return false;
+        }
+        redimensionar(folhas[0], folhas[0].length);
+        return true;
+    }
+
+    /**
+     * Compara esta árvore com outra, descendo apenas pelos nós diferentes.
+     * As duas árvores devem estar atualizadas.
+     *
+     * @param outra Árvore a ser comparada.
+     * @return Faixas de números de conta (início e fim, inclusive) em que as
+     *         árvores são diferentes, em ordem crescente.
+     */
+    public List<int[]> diferencas(ArvoreMerkle outra) {
+        List<int[]> faixas = new ArrayList<>();
+        comparar(outra, Math.max(getAltura(), outra.getAltura()), 0, faixas);
+        return faixas;
+    }
+
+    /**
+     * Retorna o hash da raiz da árvore (árvores com a mesma raiz têm as
+     * mesmas contas).
+     *
+     * @return Hash da raiz.
+     */
+    public synchronized long getRaiz() {
+        return nos[1];
+    }
+
+    /**
+     * Retorna a altura da árvore (zero se ela tem uma só folha).
+     *
+     * @return Altura da árvore.
+     */
+    public synchronized int getAltura() {
+        return Integer.numberOfTrailingZeros(capacidade);
+    }
+
+    /**
+     * Retorna o hash de um nó. Nós fora da árvore são tratados como se a
+     * árvore fosse maior e tivesse apenas folhas vazias a mais, para que
+     * árvores de tamanhos diferentes possam ser comparadas.
+     *
+     * @param altura Altura do nó (zero para as folhas).
+     * @param indice Posição do nó na sua altura, da esquerda para a direita.
+     * @return Hash do nó (zero se o nó não tem nenhuma conta).
+     */
+    public synchronized long getHash(int altura, int indice) {
+        int alturaArvore = Integer.numberOfTrailingZeros(capacidade);
+        if (altura > alturaArvore) {
+            if (indice != 0) {
+                return 0;
+            }
+            long hash = nos[1];
+            for (int i = alturaArvore; i < altura; i++) {
+                hash = combinar(hash, 0);
+            }
+            return hash;
+        }
+        int largura = capacidade >> altura;
+        return indice < largura ? nos[largura + indice] : 0;
+    }
+
+    /*
+     * Compara um nó das duas árvores, descendo pelos filhos se eles forem
+     * diferentes e juntando as faixas das folhas diferentes vizinhas
+     */
+    private void comparar(ArvoreMerkle outra, int altura, int indice, List<int[]> faixas) {
+        if (getHash(altura, indice) == outra.getHash(altura, indice)) {
+            return;
+        }
+        if (altura > 0) {
+            comparar(outra, altura - 1, 2 * indice, faixas);
+            comparar(outra, altura - 1, 2 * indice + 1, faixas);
+            return;
+        }
+        int inicio = indice * CONTAS_POR_FOLHA;
+        if (!faixas.isEmpty() && faixas.get(faixas.size() - 1)[1] == inicio - 1) {
+            faixas.get(faixas.size() - 1)[1] = ultimoNumero(indice);
+        } else {
+            faixas.add(new int[] { inicio, ultimoNumero(indice) });
+        }
+    }
+
+    /*
+     * Retira as marcações de todas as folhas, retornando as folhas que
+     * estavam marcadas em ordem crescente
+     */
+    private int[] retirarMarcacoes() {
+        AtomicIntegerArray[] segmentos = marcacoes;
+        int[] folhas = new int[16];
+        int quantidade = 0;
+        for (int segmento = 0; segmento < segmentos.length; segmento++) {
+            AtomicIntegerArray marcas = segmentos[segmento];
+            for (int posicao = 0; posicao < FOLHAS_POR_SEGMENTO; posicao++) {
+                if (marcas.get(posicao) != 0) {
+                    marcas.set(posicao, 0);
+                    if (quantidade == folhas.length) {
+                        folhas = Arrays.copyOf(folhas, 2 * quantidade);
+                    }
+                    folhas[quantidade++] = segmento * FOLHAS_POR_SEGMENTO + posicao;
+                }
+            }
+        }
+        return Arrays.copyOf(folhas, quantidade);
+    }
+
+    /*
+     * Cria os segmentos de marcações até o segmento passado (inclusive)
+     */
+    private AtomicIntegerArray[] criarSegmentos(int segmento) {
+        synchronized (travaMarcacoes) {
+            AtomicIntegerArray[] atuais = marcacoes;
+            if (segmento < atuais.length) {
+                return atuais;
+            }
+            AtomicIntegerArray[] novos = Arrays.copyOf(atuais, Math.max(segmento + 1, 2 * atuais.length));
+            for (int i = atuais.length; i < novos.length; i++) {
+                novos[i] = new AtomicIntegerArray(FOLHAS_POR_SEGMENTO);
+            }
+            marcacoes = novos;
+            return novos;
+        }
+    }
+
+    /*
+     * Recria os nós da árvore a partir dos hashes das folhas, com capacidade
+     * para a quantidade de folhas passada (deve ser chamado com o objeto
+     * travado)
+     */
+    private void redimensionar(long[] folhas, int quantidadeFolhas) {
+        capacidade = quantidadeFolhas <= 1 ? 1 : Integer.highestOneBit(quantidadeFolhas - 1) << 1;
+        nos = new long[2 * capacidade];
+        System.arraycopy(folhas, 0, nos, capacidade, Math.min(folhas.length, capacidade));
+        for (int i = capacidade - 1; i >= 1; i--) {
+            nos[i] = combinar(nos[2 * i], nos[2 * i + 1]);
+        }
+    }
+
+    /*
+     * Retorna o último número de conta de uma folha
+     */
+    private int ultimoNumero(int folha) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) (folha + 1) * CONTAS_POR_FOLHA - 1);
+    }
+
+    /*
+     * Hash de uma conta (número e saldo); o hash de uma folha é a soma dos
+     * hashes das suas contas, então as contas podem ser lidas em qualquer
+     * ordem
+     */
+    private static long espalhar(Conta conta) {
+        // somar 0.0 transforma -0.0 em 0.0, que são saldos iguais
+        return misturar(conta.getNumero() * 0x9E3779B97F4A7C15L
+                + misturar(Double.doubleToLongBits(conta.getSaldo() + 0.0)));
+    }
+
+    /*
+     * Hash de um nó a partir dos hashes dos filhos (zero se os dois são
+     * vazios, para que nós sem contas sejam iguais em qualquer árvore)
+     */
+    private static long combinar(long esquerdo, long direito) {
+        if (esquerdo == 0 && direito == 0) {
+            return 0;
+        }
+        return misturar(misturar(esquerdo) + direito * 0xC2B2AE3D27D4EB4FL);
+    }
+
+    /*
+     * Espalha os bits de um valor (função de mistura do SplitMix64)
+     */
+    private static long misturar(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Controle das contas "quentes" de uma agência: contas que recebem tantos
+ * depósitos ao mesmo tempo (como contas de lojistas ou de folha de pagamento)
+ * que a trava da conta vira um gargalo.
+ *
+ * Os depósitos em uma conta quente não travam a conta: eles são somados em
+ * um DoubleAdder, que espalha os valores em várias células (uma por
+ * processador, aproximadamente) e por isso aceita muitas somas simultâneas.
+ * A agência depois retira o total das células e o deposita de fato na conta
+ * (veja Agencia.habilitarContasQuentes). Como as células só recebem
+ * depósitos, um saque que retira o total delas antes de debitar a conta
+ * nunca deixa o saldo negativo.
+ *
+ * Uma conta é promovida a quente quando as esperas pela sua trava em
+ * depósitos passam de um limite dentro de um intervalo, e volta a ser comum
+ * quando recebe poucos depósitos em um intervalo.
+ */
+public class ContasQuentes {
+    // espera pela trava de uma conta, em nanossegundos, considerada uma disputa
+    private final long ESPERA_DISPUTA = 20_000;
+    // quantidade de disputas em um intervalo para que a conta seja promovida
+    private final int DISPUTAS_PROMOCAO = 50;
+    // quantidade de depósitos em um intervalo abaixo da qual a conta é rebaixada
+    private final int DEPOSITOS_REBAIXAMENTO = 1000;
+
+    // disputas pela trava de cada conta no intervalo atual
+    private final Map<Integer, LongAdder> disputas;
+    // células de depósito das contas quentes
+    private final Map<Integer, Celulas> quentes;
+
+    /**
+     * Cria o controle sem nenhuma conta quente.
+     */
+    public ContasQuentes() {
+        disputas = new ConcurrentHashMap<>();
+        quentes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Deposita um valor nas células de uma conta, se ela for quente.
+     *
+     * @param numero Número da conta.
+     * @param valor  Valor a ser depositado (deve ser positivo).
+     * @return true se a conta é quente e o valor foi depositado nas células e
+     *         false se o depósito deve ser feito normalmente.
+     */
+    public boolean depositar(int numero, double valor) {
+        Celulas celulas = quentes.get(numero);
+        if (celulas == null) {
+            return false;
+        }
+        celulas.valores.add(valor);
+        celulas.depositos.increment();
+        return true;
+    }
+
+    /**
+     * Registra quanto tempo um depósito esperou pela trava de uma conta,
+     * promovendo a conta a quente se ela estiver sendo muito disputada.
+     *
+     * @param numero     Número da conta.
+     * @param esperaNano Tempo de espera, em nanossegundos.
+     */
+    public void registrarEspera(int numero, long esperaNano) {
+        if (esperaNano < ESPERA_DISPUTA) {
+            return;
+        }
+        LongAdder contador = disputas.computeIfAbsent(numero, n -> new LongAdder());
+        contador.increment();
+        if (contador.sum() >= DISPUTAS_PROMOCAO && quentes.putIfAbsent(numero, new Celulas()) == null) {
+            RegistroEventos.aviso("ContasQuentes", "Conta " + numero + " promovida a conta quente");
+        }
+    }
+
+    /**
+     * Retira o total depositado nas células de uma conta (zero se ela não é
+     * quente). Depósitos simultâneos à retirada ficam para a próxima.
+     *
+     * @param numero Número da conta.
+     * @return Total retirado.
+     */
+    public double retirarDepositos(int numero) {
+        Celulas celulas = quentes.get(numero);
+        return celulas == null ? 0.0 : celulas.valores.sumThenReset();
+    }
+
+    /**
+     * Retorna os números das contas quentes.
+     *
+     * @return Números das contas.
+     */
+    public Set<Integer> getNumeros() {
+        return quentes.keySet();
+    }
+
+    /**
+     * Encerra o intervalo atual: zera as disputas e retorna as contas quentes
+     * que receberam poucos depósitos no intervalo e devem ser rebaixadas.
+     *
+     * @return Números das contas a serem rebaixadas.
+     */
+    public List<Integer> encerrarIntervalo() {
+        disputas.clear();
+        List<Integer> frias = new ArrayList<>();
+        for (Map.Entry<Integer, Celulas> entrada : quentes.entrySet()) {
+            if (entrada.getValue().depositos.sumThenReset() < DEPOSITOS_REBAIXAMENTO) {
+                frias.add(entrada.getKey());
+            }
+        }
+        return frias;
+    }
+
+    /**
+     * Rebaixa uma conta quente a conta comum. Deve ser chamado quando nenhum
+     * depósito está em andamento.
+     *
+     * @param numero Número da conta.
+     * @return Total que ainda estava nas células da conta.
+     */
+    public double rebaixar(int numero) {
+        Celulas celulas = quentes.remove(numero);
+        if (celulas == null) {
+            return 0.0;
+        }
+        RegistroEventos.aviso("ContasQuentes", "Conta " + numero + " rebaixada a conta comum");
+        return celulas.valores.sum();
+    }
+
+    /*
+     * Células de depósito de uma conta quente: valores depositados e
+     * quantidade de depósitos no intervalo atual
+     */
+    private static final class Celulas {
+        final DoubleAdder valores = new DoubleAdder();
+        final LongAdder depositos = new LongAdder();
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Guarda estatísticas agregadas de uma agência (quantidade de contas, saldo
+ * total, menor e maior saldo).
+ *
+ * Os valores são mantidos de forma incremental a cada operação realizada na
+ * agência, de forma que consultá-los não exige percorrer todas as contas. As
+ * estruturas usadas são seguras para acesso concorrente: os contadores são
+ * "somadores distribuídos" (LongAdder e DoubleAdder), que espalham as
+ * atualizações entre várias células para evitar disputa entre threads.
+ */
+public class EstatisticasAgencia {
+    // quantidade de contas da agência
+    private final LongAdder quantidadeContas;
+    // soma dos saldos de todas as contas
+    private final DoubleAdder saldoTotal;
+    // quantas contas possuem cada valor de saldo (usado para o menor e o maior
+    // saldo); é um mapa ordenado, então o menor e o maior saldo ficam nas pontas
+    private final ConcurrentSkipListMap<Double, Long> saldos;
+
+    /**
+     * Cria as estatísticas de uma agência sem contas.
+     */
+    public EstatisticasAgencia() {
+        quantidadeContas = new LongAdder();
+        saldoTotal = new DoubleAdder();
+        saldos = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Cria uma cópia das estatísticas passadas. Para que a cópia seja
+     * consistente, as estatísticas não devem estar sendo alteradas.
+     *
+     * @param outras Estatísticas a serem copiadas.
+     */
+    public EstatisticasAgencia(EstatisticasAgencia outras) {
+        this();
+        quantidadeContas.add(outras.quantidadeContas.sum());
+        saldoTotal.add(outras.saldoTotal.sum());
+        saldos.putAll(outras.saldos);
+    }
+
+    /**
+     * Registra uma nova conta na agência.
+     *
+     * @param saldo Saldo inicial da conta.
+     */
+    public void registrarConta(double saldo) {
+        quantidadeContas.increment();
+        saldoTotal.add(saldo);
+        adicionarSaldo(saldo);
+    }
+
+    /**
+     * Registra a alteração do saldo de uma conta.
+     *
+     * @param saldoAnterior Saldo da conta antes da operação.
+     * @param saldoAtual    Saldo da conta depois da operação.
+     */
+    public void registrarAlteracao(double saldoAnterior, double saldoAtual) {
+        if (saldoAnterior == saldoAtual) {
+            return;
+        }
+        saldoTotal.add(saldoAtual - saldoAnterior);
+        adicionarSaldo(saldoAtual);
+        removerSaldo(saldoAnterior);
+    }
+
+    /**
+     * Retorna a quantidade de contas da agência.
+     *
+     * @return Quantidade de contas.
+     */
+    public long getQuantidadeContas() {
+        return quantidadeContas.sum();
+    }
+
+    /**
+     * Retorna a soma dos saldos de todas as contas da agência.
+     *
+     * @return Saldo total da agência.
+     */
+    public double getSaldoTotal() {
+        return saldoTotal.sum();
+    }
+
+    /**
+     * Retorna o saldo médio das contas da agência (zero se não há contas).
+     *
+     * @return Saldo médio.
+     */
+    public double getSaldoMedio() {
+        long quantidade = getQuantidadeContas();
+        return quantidade > 0 ? getSaldoTotal() / quantidade : 0.0;
+    }
+
+    /**
+     * Retorna o menor saldo entre as contas da agência (zero se não há contas).
+     *
+     * @return Menor saldo.
+     */
+    public double getMenorSaldo() {
+        Map.Entry<Double, Long> menor = saldos.firstEntry();
+        return menor != null ? menor.getKey() : 0.0;
+    }
+
+    /**
+     * Retorna o maior saldo entre as contas da agência (zero se não há contas).
+     *
+     * @return Maior saldo.
+     */
+    public double getMaiorSaldo() {
+        Map.Entry<Double, Long> maior = saldos.lastEntry();
+        return maior != null ? maior.getKey() : 0.0;
+    }
+
+    /**
+     * Retorna um resumo das estatísticas.
+     *
+     * @return O resumo no formato "Contas: N - saldo total: R$ X - menor: R$ Y -
+     *         maior: R$ Z"
+     */
+    @Override
+    public String toString() {
+        return "Contas: " + getQuantidadeContas() + " - saldo total: R$ " + getSaldoTotal()
+                + " - menor: R$ " + getMenorSaldo() + " - maior: R$ " + getMaiorSaldo();
+    }
+
+    /*
+     * Conta mais uma conta com o saldo passado
+     */
+    private void adicionarSaldo(double saldo) {
+        saldos.merge(saldo, 1L, Long::sum);
+    }
+
+    /*
+     * Desconta uma conta com o saldo passado (remove o saldo do mapa quando não
+     * há mais contas com ele)
+     */
+    private void removerSaldo(double saldo) {
+        saldos.computeIfPresent(saldo, (chave, quantidade) -> quantidade > 1 ? quantidade - 1 : null);
+    }
+}
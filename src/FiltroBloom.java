@@ -0,0 +1,147 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro de Bloom de números de contas: um conjunto compacto (alguns bits por
+ * conta) que responde, em poucos nanossegundos, se um número "pode ser" de
+ * uma conta existente.
+ *
+ * Cada número adicionado liga alguns bits do filtro, escolhidos por funções
+ * de espalhamento (hash). Se algum dos bits de um número está desligado, com
+ * certeza o número nunca foi adicionado; se todos estão ligados, o número
+ * provavelmente foi adicionado (pode haver falsos positivos, na taxa
+ * escolhida ao criar o filtro, mas nunca falsos negativos).
+ *
+ * Números podem ser adicionados e consultados por várias threads ao mesmo
+ * tempo. Não é possível remover números.
+ */
+public class FiltroBloom {
+    // bits do filtro
+    private final AtomicLongArray bits;
+    // quantidade de bits e de funções de espalhamento
+    private final long quantidadeBits;
+    private final int quantidadeFuncoes;
+    // quantidade de números para a qual o filtro foi dimensionado
+    private final long capacidade;
+
+    /**
+     * Cria um filtro vazio dimensionado para uma quantidade de números.
+     *
+     * @param quantidadeEsperada Quantidade de números que serão adicionados.
+     * @param taxaFalsosPositivos Taxa de falsos positivos desejada para essa
+     *                            quantidade (por exemplo, 0.01 para 1%).
+     */
+    public FiltroBloom(long quantidadeEsperada, double taxaFalsosPositivos) {
+        long n = Math.max(1, quantidadeEsperada);
+        capacidade = n;
+        // fórmulas usuais: m = -n ln(p) / ln(2)^2 e k = m/n ln(2)
+        long m = (long) Math.ceil(-n * Math.log(taxaFalsosPositivos) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, (m + 63) / 64 * 64);
+        quantidadeBits = m;
+        quantidadeFuncoes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        bits = new AtomicLongArray((int) (m / 64));
+    }
+
+    /*
+     * Cria um filtro com os bits lidos de um arquivo
+     */
+    private FiltroBloom(long[] palavras, int quantidadeFuncoes, long capacidade) {
+        bits = new AtomicLongArray(palavras);
+        quantidadeBits = (long) palavras.length * 64;
+        this.quantidadeFuncoes = quantidadeFuncoes;
+        this.capacidade = capacidade;
+    }
+
+    /**
+     * Retorna a quantidade de números para a qual o filtro foi dimensionado
+     * (com mais números, a taxa de falsos positivos aumenta).
+     *
+     * @return Capacidade do filtro.
+     */
+    public long getCapacidade() {
+        return capacidade;
+    }
+
+    /**
+     * Adiciona um número ao filtro.
+     *
+     * @param numero Número da conta.
+     */
+    public void adicionar(int numero) {
+        long espalhamento = espalhar(numero);
+        int h1 = (int) espalhamento;
+        int h2 = (int) (espalhamento >>> 32) | 1;
+        for (int i = 0; i < quantidadeFuncoes; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % quantidadeBits;
+            int palavra = (int) (bit >>> 6);
+            long mascara = 1L << bit;
+            long atual = bits.get(palavra);
+            while ((atual & mascara) == 0 && !bits.compareAndSet(palavra, atual, atual | mascara)) {
+                atual = bits.get(palavra);
+            }
+        }
+    }
+
+    /**
+     * Retorna se um número pode ter sido adicionado ao filtro.
+     *
+     * @param numero Número da conta.
+     * @return false se o número com certeza não foi adicionado e true se ele
+     *         provavelmente foi.
+     */
+    public boolean podeConter(int numero) {
+        long espalhamento = espalhar(numero);
+        int h1 = (int) espalhamento;
+        int h2 = (int) (espalhamento >>> 32) | 1;
+        for (int i = 0; i < quantidadeFuncoes; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % quantidadeBits;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Grava o filtro.
+     *
+     * @param saida Onde o filtro será gravado.
+     */
+    public void gravar(DataOutputStream saida) throws IOException {
+        saida.writeLong(capacidade);
+        saida.writeInt(quantidadeFuncoes);
+        saida.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            saida.writeLong(bits.get(i));
+        }
+    }
+
+    /**
+     * Lê um filtro gravado pelo método gravar.
+     *
+     * @param entrada De onde o filtro será lido.
+     * @return Filtro lido.
+     */
+    public static FiltroBloom ler(DataInputStream entrada) throws IOException {
+        long capacidade = entrada.readLong();
+        int quantidadeFuncoes = entrada.readInt();
+        long[] palavras = new long[entrada.readInt()];
+        for (int i = 0; i < palavras.length; i++) {
+            palavras[i] = entrada.readLong();
+        }
+        return new FiltroBloom(palavras, quantidadeFuncoes, capacidade);
+    }
+
+    /*
+     * Espalha os bits do número (função de mistura do SplitMix64); as duas
+     * metades do resultado são usadas para gerar as posições dos bits
+     */
+    private static long espalhar(int numero) {
+        long z = numero * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Envia lotes de contas para uma persistência, mesmo que ela não aceite
+ * salvamento parcial.
+ *
+ * Se a persistência aceita salvamento parcial, cada lote é salvo diretamente.
+ * Caso contrário, ela substitui tudo o que estava salvo a cada salvamento,
+ * então é mantida uma imagem de todas as contas (carregada da persistência no
+ * primeiro lote) e cada lote é combinado com a imagem antes de ela ser salva
+ * inteira.
+ *
+ * Usada pelas persistências que recebem as contas aos poucos e as gravam
+ * depois em outra persistência (veja PersistenciaEscritaAtrasada e
+ * PersistenciaAssincronaAgrupada). Não deve ser usada por várias threads ao
+ * mesmo tempo.
+ */
+public class ImagemContas {
+    // persistência que recebe os lotes
+    private final Persistencia persistencia;
+    // todas as contas salvas (null enquanto não foram carregadas)
+    private Map<Integer, Conta> contas;
+
+    /**
+     * Cria a imagem (vazia até o primeiro lote).
+     *
+     * @param persistencia Persistência que receberá os lotes.
+     */
+    public ImagemContas(Persistencia persistencia) {
+        this.persistencia = persistencia;
+    }
+
+    /**
+     * Salva um lote de contas na persistência.
+     *
+     * @param lote Contas a serem salvas.
+     * @return true se as contas foram salvas e false se houve algum problema
+     *         (inclusive ao carregar a imagem, caso em que nada é salvo, para
+     *         não substituir as contas persistidas apenas pelas do lote).
+     */
+    public boolean salvar(Collection<Conta> lote) {
+        if (persistencia.salvamentoParcial()) {
+            return persistencia.salvarContas(new ArrayList<>(lote));
+        }
+        if (contas == null) {
+            Map<Integer, Conta> carregadas = new HashMap<>();
+            if (persistencia.criada()
+                    && !persistencia.percorrerContas(conta -> carregadas.put(conta.getNumero(), conta))) {
+                RegistroEventos.erro("ImagemContas",
+                        "Houve um erro ao tentar carregar as contas já salvas; o lote não foi salvo", null);
+                return false;
+            }
+            contas = carregadas;
+        }
+        for (Conta conta : lote) {
+            contas.put(conta.getNumero(), conta);
+        }
+        return persistencia.salvarContas(new ArrayList<>(contas.values()));
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Índice das contas de uma agência ordenado pelo saldo.
+ *
+ * O índice guarda pares (saldo, número da conta) em uma "skip list"
+ * concorrente, que mantém os pares ordenados e permite inserir, remover e
+ * localizar um par em tempo O(log N). Assim, consultas como "as 100 contas
+ * com maior saldo" ou "as contas com saldo abaixo de X" custam O(log N + k),
+ * sendo k a quantidade de contas retornadas, em vez de exigir percorrer e
+ * ordenar todas as contas.
+ *
+ * O índice é atualizado a cada alteração de saldo, acrescentando o par com o
+ * novo saldo e depois removendo o par antigo. Durante uma alteração, uma
+ * consulta concorrente pode encontrar os dois pares (ou nenhum deles, se
+ * passar pela posição do novo antes de ele ser acrescentado e pela do antigo
+ * depois de ele ser removido); as consultas descartam os números repetidos,
+ * então cada conta aparece no máximo uma vez, com o saldo antigo ou com o
+ * novo.
+ */
+public class IndiceSaldos {
+    // pares (saldo, número) ordenados pelo saldo e, em caso de empate, pelo número
+    private final ConcurrentSkipListSet<Entrada> entradas;
+
+    /**
+     * Cria um índice vazio.
+     */
+    public IndiceSaldos() {
+        entradas = new ConcurrentSkipListSet<>();
+    }
+
+    /**
+     * Adiciona uma conta ao índice.
+     *
+     * @param numero Número da conta.
+     * @param saldo  Saldo da conta.
+     */
+    public void adicionar(int numero, double saldo) {
+        entradas.add(new Entrada(saldo, numero));
+    }
+
+    /**
+     * Atualiza o saldo de uma conta no índice.
+     *
+     * @param numero        Número da conta.
+     * @param saldoAnterior Saldo da conta antes da alteração.
+     * @param saldoAtual    Saldo da conta depois da alteração.
+     */
+    public void atualizar(int numero, double saldoAnterior, double saldoAtual) {
+        if (saldoAnterior != saldoAtual) {
+            entradas.add(new Entrada(saldoAtual, numero));
+            entradas.remove(new Entrada(saldoAnterior, numero));
+        }
+    }
+
+    /**
+     * Retorna as contas com os maiores saldos, do maior para o menor.
+     *
+     * @param quantidade Quantidade máxima de contas a retornar.
+     * @return Cópias das contas com os maiores saldos.
+     */
+    public List<Conta> maioresSaldos(int quantidade) {
+        List<Conta> contas = new ArrayList<>();
+        Set<Integer> encontradas = new HashSet<>();
+        Iterator<Entrada> iterador = entradas.descendingIterator();
+        while (contas.size() < quantidade && iterador.hasNext()) {
+            Entrada entrada = iterador.next();
+            if (encontradas.add(entrada.numero)) {
+                contas.add(entrada.comoConta());
+            }
+        }
+        return contas;
+    }
+
+    /**
+     * Retorna as contas com saldo entre os valores passados (inclusive), do
+     * menor para o maior saldo.
+     *
+     * @param minimo Menor saldo.
+     * @param maximo Maior saldo.
+     * @return Cópias das contas com saldo no intervalo.
+     */
+    public List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        List<Conta> contas = new ArrayList<>();
+        Set<Integer> encontradas = new HashSet<>();
+        if (minimo <= maximo) {
+            for (Entrada entrada : entradas.subSet(new Entrada(minimo, Integer.MIN_VALUE), true,
+                    new Entrada(maximo, Integer.MAX_VALUE), true)) {
+                if (encontradas.add(entrada.numero)) {
+                    contas.add(entrada.comoConta());
+                }
+            }
+        }
+        return contas;
+    }
+
+    /*
+     * Um par (saldo, número da conta) do índice
+     */
+    private static final class Entrada implements Comparable<Entrada> {
+        private final double saldo;
+        private final int numero;
+
+        Entrada(double saldo, int numero) {
+            this.saldo = saldo;
+            this.numero = numero;
+        }
+
+        Conta comoConta() {
+            return new Conta(numero, saldo);
+        }
+
+        @Override
+        public int compareTo(Entrada outra) {
+            int comparacao = Double.compare(saldo, outra.saldo);
+            return comparacao != 0 ? comparacao : Integer.compare(numero, outra.numero);
+        }
+
+        @Override
+        public boolean equals(Object objeto) {
+            return objeto instanceof Entrada && compareTo((Entrada) objeto) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(saldo) * 31 + numero;
+        }
+    }
+}
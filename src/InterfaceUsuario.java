@@ -1,4 +1,8 @@
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 /**
@@ -13,11 +17,32 @@ public class InterfaceUsuario {
     private Scanner entrada;
     // Número da opção para sair do programa
     private final int OPCAO_SAIR = 6;
+    // Intervalo (em milissegundos) e limite de contas pendentes da escrita
+    // atrasada usada no modo em lote
+    private final long INTERVALO_ESCRITA_LOTE = 1000;
+    private final int LIMITE_PENDENTES_LOTE = 100000;
 
     /*
      * Cria a interface de usuário com o nome da agência e a persistência
      */
     public InterfaceUsuario(String nomeAgencia, Persistencia persistencia) {
+        this(nomeAgencia, persistencia, false);
+    }
+
+    /*
+     * Cria a interface de usuário com o nome da agência e a persistência,
+     * indicando se ela será usada no modo em lote (veja executarLote). No modo
+     * em lote, se a persistência aceita salvamento parcial mas não é própria
+     * para salvar a cada operação, as contas alteradas passam a ser salvas em
+     * grupos, em segundo plano (escrita atrasada). Persistências que já são
+     * próprias para isso (como a própria escrita atrasada) são usadas como
+     * estão.
+     */
+    public InterfaceUsuario(String nomeAgencia, Persistencia persistencia, boolean modoLote) {
+        if (modoLote && persistencia.salvamentoParcial() && !persistencia.salvamentoPorOperacao()) {
+            persistencia = new PersistenciaEscritaAtrasada(persistencia, INTERVALO_ESCRITA_LOTE,
+                    LIMITE_PENDENTES_LOTE);
+        }
         agencia = new Agencia(nomeAgencia, persistencia);
         entrada = new Scanner(System.in);
     }
@@ -35,6 +60,110 @@ public class InterfaceUsuario {
         agencia.finalizar();
     }
 
+    /**
+     * Executa, sem interação com o usuário, as operações lidas de um arquivo
+     * de comandos (ou da entrada padrão) e escreve o resultado de cada uma.
+     * Ao final, a agência é finalizada.
+     * 
+     * Cada linha do arquivo de comandos tem uma operação (linhas em branco e
+     * linhas iniciadas por # são ignoradas):
+     * 
+     * <pre>
+     * C                           criar conta
+     * D conta valor               depósito
+     * S conta valor               saque
+     * T origem destino valor      transferência
+     * </pre>
+     * 
+     * Apenas a primeira letra da operação é considerada (então "deposito 1
+     * 10.50" também funciona) e os valores usam ponto como separador decimal.
+     * Uma linha com texto a mais depois dos argumentos da operação resulta em
+     * erro, sem que a operação seja executada.
+     * 
+     * Para cada operação é escrita uma linha de resultado com o número da
+     * linha do comando e: "OK" (ou "OK conta" ao criar uma conta), "SALDO
+     * saldo" se a conta não tinha saldo suficiente ou "ERRO mensagem".
+     * 
+     * Os comandos são lidos e os resultados escritos diretamente em bytes,
+     * sem criar objetos por linha, para processar milhões de operações por
+     * minuto.
+     * 
+     * @param comandos   Onde os comandos serão lidos.
+     * @param resultados Onde os resultados serão escritos.
+     */
+    public void executarLote(InputStream comandos, OutputStream resultados) throws IOException {
+        LeitorComandos leitor = new LeitorComandos(comandos);
+        EscritorResultados escritor = new EscritorResultados(resultados);
+        long inicio = System.nanoTime();
+        long operacoes = 0;
+        long falhas = 0;
+
+        // a agência é finalizada (e as contas salvas) mesmo se a leitura dos
+        // comandos ou a escrita dos resultados falhar
+        boolean salvou;
+        try {
+            int operacao;
+            while ((operacao = leitor.proximaOperacao()) != -1) {
+                operacoes++;
+                escritor.escreverNumero(leitor.getLinha());
+                try {
+                    // os argumentos são lidos e a linha conferida antes de a
+                    // operação ser executada
+                    int nroConta;
+                    int nroContaDestino;
+                    double valor;
+                    switch (Character.toUpperCase(operacao)) {
+                        case 'C':
+                            leitor.verificarFimDaLinha();
+                            nroConta = agencia.criarConta();
+                            escritor.escrever(" OK ");
+                            escritor.escreverNumero(nroConta);
+                            break;
+                        case 'D':
+                            nroConta = leitor.lerConta();
+                            valor = leitor.lerValor();
+                            leitor.verificarFimDaLinha();
+                            agencia.depositar(nroConta, valor);
+                            escritor.escrever(" OK");
+                            break;
+                        case 'S':
+                            nroConta = leitor.lerConta();
+                            valor = leitor.lerValor();
+                            leitor.verificarFimDaLinha();
+                            agencia.sacar(nroConta, valor);
+                            escritor.escrever(" OK");
+                            break;
+                        case 'T':
+                            nroConta = leitor.lerConta();
+                            nroContaDestino = leitor.lerConta();
+                            valor = leitor.lerValor();
+                            leitor.verificarFimDaLinha();
+                            agencia.transferir(nroConta, nroContaDestino, valor);
+                            escritor.escrever(" OK");
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Operação inválida!");
+                    }
+                } catch (SaldoInsuficienteException e) {
+                    falhas++;
+                    escritor.escrever(" SALDO " + e.getSaldo());
+                } catch (RuntimeException e) {
+                    falhas++;
+                    escritor.escrever(" ERRO " + e.getMessage());
+                }
+                escritor.escrever("\n");
+                leitor.terminarLinha();
+            }
+            escritor.esvaziar();
+        } finally {
+            salvou = agencia.finalizar();
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.err.println(operacoes + " operações (" + falhas + " com falha) em "
+                + String.format("%.1f", segundos) + " s - " + Math.round(operacoes / segundos) + " operações/s"
+                + (salvou ? "" : " - ATENÇÃO: houve um erro ao salvar as contas"));
+    }
+
     /*
      * Exibe o menu e retorna a opção escolhida pelo usuário
      */
@@ -175,4 +304,224 @@ public class InterfaceUsuario {
             System.out.println(e.getMessage());
         }
     }
+
+    /*
+     * Lê os comandos do modo em lote diretamente dos bytes da entrada, sem
+     * criar Strings
+     */
+    private static class LeitorComandos {
+        private final InputStream entrada;
+        private final byte[] buffer = new byte[1 << 16];
+        private int posicao;
+        private int limite;
+        private int linha;
+
+        LeitorComandos(InputStream entrada) {
+            this.entrada = entrada;
+        }
+
+        int getLinha() {
+            return linha;
+        }
+
+        /*
+         * Avança até a próxima linha com uma operação e retorna a primeira
+         * letra dela (ou -1 no fim da entrada), deixando a leitura logo depois
+         * da palavra da operação
+         */
+        int proximaOperacao() throws IOException {
+            while (true) {
+                int c = pularEspacos();
+                if (c == -1) {
+                    return -1;
+                }
+                linha++;
+                if (c == '\n') {
+                    posicao++;
+                } else if (c == '#') {
+                    terminarLinha();
+                } else {
+                    int operacao = c;
+                    while (c != -1 && c > ' ') {
+                        posicao++;
+                        c = espiar();
+                    }
+                    return operacao;
+                }
+            }
+        }
+
+        /*
+         * Lê um número de conta
+         */
+        int lerConta() throws IOException {
+            int c = pularEspacos();
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Número de conta inválido!");
+            }
+            long numero = 0;
+            while (c >= '0' && c <= '9') {
+                numero = numero * 10 + (c - '0');
+                if (numero > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Número de conta inválido!");
+                }
+                posicao++;
+                c = espiar();
+            }
+            if (!separador(c)) {
+                throw new IllegalArgumentException("Número de conta inválido!");
+            }
+            return (int) numero;
+        }
+
+        /*
+         * Lê um valor (com até 15 dígitos e ponto como separador decimal)
+         */
+        double lerValor() throws IOException {
+            int c = pularEspacos();
+            long mantissa = 0;
+            int digitos = 0;
+            int casasDecimais = -1;
+            while ((c >= '0' && c <= '9') || (c == '.' && casasDecimais < 0)) {
+                if (c == '.') {
+                    casasDecimais = 0;
+                } else {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digitos++;
+                    if (casasDecimais >= 0) {
+                        casasDecimais++;
+                    }
+                }
+                posicao++;
+                c = espiar();
+            }
+            if (digitos == 0 || digitos > 15 || !separador(c)) {
+                throw new IllegalArgumentException("Valor inválido!");
+            }
+            // a mantissa e a potência de 10 são representadas exatamente, então
+            // a divisão resulta no double mais próximo do valor escrito
+            return casasDecimais > 0 ? mantissa / POTENCIAS_DE_10[casasDecimais] : mantissa;
+        }
+
+        /*
+         * Confere que o restante da linha atual tem apenas espaços (lança uma
+         * exceção caso contrário)
+         */
+        void verificarFimDaLinha() throws IOException {
+            int c = pularEspacos();
+            if (c != '\n' && c != -1) {
+                throw new IllegalArgumentException("Texto a mais na linha!");
+            }
+        }
+
+        /*
+         * Descarta o restante da linha atual (inclusive a quebra de linha)
+         */
+        void terminarLinha() throws IOException {
+            int c;
+            while ((c = espiar()) != -1) {
+                posicao++;
+                if (c == '\n') {
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Pula espaços, tabulações e \r e retorna o próximo byte sem
+         * consumi-lo (-1 no fim da entrada)
+         */
+        private int pularEspacos() throws IOException {
+            int c = espiar();
+            while (c == ' ' || c == '\t' || c == '\r') {
+                posicao++;
+                c = espiar();
+            }
+            return c;
+        }
+
+        /*
+         * Retorna se um byte (ou o fim da entrada) separa um argumento do
+         * seguinte
+         */
+        private static boolean separador(int c) {
+            return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == -1;
+        }
+
+        /*
+         * Retorna o próximo byte sem consumi-lo (-1 no fim da entrada)
+         */
+        private int espiar() throws IOException {
+            if (posicao == limite) {
+                limite = entrada.read(buffer);
+                posicao = 0;
+                if (limite <= 0) {
+                    limite = 0;
+                    return -1;
+                }
+            }
+            return buffer[posicao] & 0xFF;
+        }
+
+        private static final double[] POTENCIAS_DE_10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+                1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+    }
+
+    /*
+     * Escreve os resultados do modo em lote diretamente em bytes
+     */
+    private static class EscritorResultados {
+        private final OutputStream saida;
+        private final byte[] buffer = new byte[1 << 16];
+        private int posicao;
+
+        EscritorResultados(OutputStream saida) {
+            this.saida = saida;
+        }
+
+        void escreverNumero(long numero) throws IOException {
+            if (buffer.length - posicao < 20) {
+                esvaziar();
+            }
+            if (numero < 0) {
+                buffer[posicao++] = '-';
+                numero = -numero;
+            }
+            int inicio = posicao;
+            do {
+                buffer[posicao++] = (byte) ('0' + numero % 10);
+                numero /= 10;
+            } while (numero > 0);
+            // os dígitos foram escritos do último para o primeiro
+            for (int i = inicio, j = posicao - 1; i < j; i++, j--) {
+                byte digito = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = digito;
+            }
+        }
+
+        void escrever(String texto) throws IOException {
+            // os textos fixos são ASCII e são copiados byte a byte; os demais
+            // (como mensagens de erro) são convertidos para UTF-8
+            byte[] bytes = null;
+            for (int i = 0; i < texto.length() && bytes == null; i++) {
+                if (texto.charAt(i) >= 128) {
+                    bytes = texto.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            int tamanho = bytes != null ? bytes.length : texto.length();
+            for (int i = 0; i < tamanho; i++) {
+                if (posicao == buffer.length) {
+                    esvaziar();
+                }
+                buffer[posicao++] = bytes != null ? bytes[i] : (byte) texto.charAt(i);
+            }
+        }
+
+        void esvaziar() throws IOException {
+            saida.write(buffer, 0, posicao);
+            saida.flush();
+            posicao = 0;
+        }
+    }
 }
@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Migra as contas de uma persistência para outra (por exemplo, de contas.txt
+ * ou contas.dat para contas.db) sem carregar todas as contas em memória.
+ *
+ * Uma thread lê as contas da origem e as agrupa em lotes, que são colocados
+ * em uma fila de tamanho limitado; enquanto isso, outra thread grava os lotes
+ * no destino. Assim a leitura e a gravação acontecem ao mesmo tempo e apenas
+ * alguns lotes ficam em memória.
+ *
+ * Se o destino aceita salvamento parcial (como o banco de dados), cada lote é
+ * salvo separadamente e, depois de cada lote, o número da última conta
+ * migrada é guardado em um arquivo de checkpoint, junto com as persistências
+ * de origem e de destino. Se a migração entre as mesmas persistências for
+ * interrompida, ela continua depois dessa conta quando for executada de novo
+ * (a origem não deve ser alterada nesse meio tempo). Para isso, a origem
+ * precisa percorrer as contas em ordem de número, como fazem o banco de dados
+ * e a persistência em camadas; nos arquivos, as contas ficam na ordem em que
+ * foram salvas. Se a origem não estiver em ordem, o checkpoint não é gravado
+ * (e uma migração que estava continuando é interrompida, para começar do
+ * início na próxima vez). Nos demais destinos, que substituem tudo a cada
+ * salvamento, a migração sempre começa do início.
+ *
+ * Ao final, as contas do destino são conferidas com as da origem: quantidade,
+ * soma dos saldos (com tolerância de meio centavo, pois a ordem em que os
+ * saldos são somados muda o arredondamento) e um código de verificação
+ * calculado a partir dos números e saldos de todas as contas.
+ *
+ * Uso: java MigracaoPersistencia origem destino [tamanhoLote]
+ * (origem e destino podem ser: texto, binario, bd ou camadas)
+ */
+public class MigracaoPersistencia {
+    // nome do arquivo onde é guardado o checkpoint da migração
+    private final String NOME_ARQUIVO_CHECKPOINT = "migracao.checkpoint";
+    // quantidade de lotes que podem ficar na fila entre a leitura e a gravação
+    private final int LOTES_NA_FILA = 4;
+    // lote colocado na fila quando a leitura da origem falha (comparado pela
+    // referência; um lote vazio comum indica o fim das contas)
+    private static final List<Conta> LEITURA_FALHOU = new ArrayList<>();
+
+    // persistência de onde as contas são lidas
+    private Persistencia origem;
+    // persistência para onde as contas são migradas
+    private Persistencia destino;
+    // quantidade de contas em cada lote
+    private int tamanhoLote;
+    // indica que a gravação terminou (com ou sem erro) e que a thread de
+    // leitura não deve mais esperar espaço na fila
+    private volatile boolean cancelada;
+    // indica que a origem não percorre as contas em ordem de número, então o
+    // número da última conta migrada não serve como checkpoint
+    private volatile boolean foraDeOrdem;
+
+    /**
+     * Cria uma migração entre duas persistências.
+     *
+     * @param origem      Persistência de onde as contas são lidas.
+     * @param destino     Persistência para onde as contas são migradas.
+     * @param tamanhoLote Quantidade de contas em cada lote.
+     */
+    public MigracaoPersistencia(Persistencia origem, Persistencia destino, int tamanhoLote) {
+        this.origem = origem;
+        this.destino = destino;
+        this.tamanhoLote = tamanhoLote;
+    }
+
+    /**
+     * Realiza a migração e confere o resultado.
+     *
+     * @return true se todas as contas foram migradas e conferidas corretamente
+     *         e false caso contrário.
+     */
+    public boolean migrar() {
+        if (!destino.criada() && !destino.criarPersistencia()) {
+            System.out.println("Não foi possível criar a persistência de destino");
+            return false;
+        }
+
+        boolean parcial = destino.salvamentoParcial();
+        Integer ultimaMigrada = parcial ? lerCheckpoint() : null;
+        if (ultimaMigrada != null) {
+            System.out.println("Continuando a migração depois da conta " + ultimaMigrada + "...");
+        }
+
+        // a thread de leitura percorre todas as contas da origem (inclusive as
+        // já migradas, para a conferência) e coloca na fila as que faltam
+        BlockingQueue<List<Conta>> fila = new ArrayBlockingQueue<>(LOTES_NA_FILA);
+        Resumo resumoOrigem = new Resumo();
+        boolean[] leuTudo = { false };
+        cancelada = false;
+        foraDeOrdem = false;
+        Thread leitura = new Thread(() -> {
+            List<Conta> lote = new ArrayList<>(tamanhoLote);
+            long[] numeroAnterior = { Long.MIN_VALUE };
+            try {
+                leuTudo[0] = origem.percorrerContas(conta -> {
+                    resumoOrigem.registrar(conta);
+                    if (conta.getNumero() <= numeroAnterior[0] && !foraDeOrdem) {
+                        foraDeOrdem = true;
+                        if (ultimaMigrada != null) {
+                            // as contas puladas por serem menores que a última
+                            // migrada podem não ter sido migradas
+                            throw new IllegalStateException(
+                                    "A origem não percorre as contas em ordem de número; não é possível continuar"
+                                            + " a migração (execute de novo para começar do início)");
+                        }
+                    }
+                    numeroAnterior[0] = conta.getNumero();
+                    if (ultimaMigrada == null || conta.getNumero() > ultimaMigrada) {
+                        lote.add(conta);
+                        if (lote.size() == tamanhoLote) {
+                            colocarOuCancelar(fila, new ArrayList<>(lote));
+                            lote.clear();
+                        }
+                    }
+                });
+                if (leuTudo[0] && !lote.isEmpty()) {
+                    colocarOuCancelar(fila, new ArrayList<>(lote));
+                }
+            } catch (RuntimeException e) {
+                leuTudo[0] = false;
+                if (!cancelada) {
+                    RegistroEventos.erro("MigracaoPersistencia", "Houve um erro ao ler as contas da origem", e);
+                }
+            } finally {
+                // um lote vazio indica o fim das contas; se houve erro, é
+                // colocado o lote que indica a falha, para que a gravação não
+                // fique esperando e não termine como se tivesse recebido tudo
+                colocarNaFila(fila, leuTudo[0] ? new ArrayList<>() : LEITURA_FALHOU);
+            }
+        }, "migracao-leitura");
+        leitura.start();
+
+        boolean gravouTudo;
+        try {
+            gravouTudo = parcial ? gravarPorLotes(fila) : gravarDeUmaVez(fila);
+        } finally {
+            // se a gravação parou antes do fim, a leitura deixa de esperar
+            // espaço na fila e é interrompida
+            cancelada = true;
+        }
+        try {
+            leitura.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (foraDeOrdem) {
+            new File(NOME_ARQUIVO_CHECKPOINT).delete();
+        }
+        if (!leuTudo[0] || !gravouTudo) {
+            System.out.println("A migração não foi concluída" + (parcial ? " (execute de novo para continuar)" : ""));
+            return false;
+        }
+
+        // confere as contas do destino com as da origem
+        Resumo resumoDestino = new Resumo();
+        if (!destino.percorrerContas(resumoDestino::registrar)) {
+            System.out.println("Não foi possível ler as contas do destino para conferência");
+            return false;
+        }
+        System.out.println("Origem:  " + resumoOrigem);
+        System.out.println("Destino: " + resumoDestino);
+        if (!resumoOrigem.equals(resumoDestino)) {
+            System.out.println("ATENÇÃO: as contas do destino não conferem com as da origem!");
+            return false;
+        }
+
+        new File(NOME_ARQUIVO_CHECKPOINT).delete();
+        System.out.println("Migração concluída e conferida!");
+        return destino.finalizar();
+    }
+
+    /*
+     * Grava no destino, um lote por vez, as contas colocadas na fila,
+     * atualizando o checkpoint após cada lote (enquanto a origem estiver em
+     * ordem de número)
+     */
+    private boolean gravarPorLotes(BlockingQueue<List<Conta>> fila) {
+        long migradas = 0;
+        List<Conta> lote = retirarDaFila(fila);
+        while (!lote.isEmpty()) {
+            if (!destino.salvarContas(lote)) {
+                return false;
+            }
+            migradas += lote.size();
+            // a leitura marca a origem como fora de ordem antes de colocar na
+            // fila o lote com a conta fora de ordem
+            if (foraDeOrdem) {
+                new File(NOME_ARQUIVO_CHECKPOINT).delete();
+            } else {
+                gravarCheckpoint(lote.get(lote.size() - 1).getNumero());
+            }
+            System.out.println(migradas + " contas migradas");
+            lote = retirarDaFila(fila);
+        }
+        return true;
+    }
+
+    /*
+     * Grava no destino, de uma só vez, todas as contas colocadas na fila (o
+     * destino as recebe por um iterador, à medida que são lidas). Se a leitura
+     * da origem falhar, o iterador lança uma exceção, para que o destino
+     * interrompa o salvamento sem substituir as contas que ele já tinha
+     */
+    private boolean gravarDeUmaVez(BlockingQueue<List<Conta>> fila) {
+        Iterator<Conta> contas = new Iterator<Conta>() {
+            private Iterator<Conta> loteAtual = Collections.emptyIterator();
+            private boolean terminou = false;
+
+            @Override
+            public boolean hasNext() {
+                while (!terminou && !loteAtual.hasNext()) {
+                    List<Conta> lote = retirarDaFila(fila);
+                    if (lote == LEITURA_FALHOU) {
+                        throw new IllegalStateException("A leitura da origem falhou");
+                    }
+                    loteAtual = lote.iterator();
+                    terminou = lote.isEmpty();
+                }
+                return !terminou;
+            }
+
+            @Override
+            public Conta next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return loteAtual.next();
+            }
+        };
+        try {
+            return destino.salvarContas(contas);
+        } catch (IllegalStateException e) {
+            // o destino foi interrompido pelo iterador e o erro da leitura já
+            // foi registrado
+            return false;
+        }
+    }
+
+    /*
+     * Lê do arquivo de checkpoint o número da última conta migrada (null se o
+     * arquivo não existe ou é de uma migração entre outras persistências)
+     */
+    private Integer lerCheckpoint() {
+        if (!new File(NOME_ARQUIVO_CHECKPOINT).exists()) {
+            return null;
+        }
+        try (BufferedReader arquivo = new BufferedReader(new FileReader(NOME_ARQUIVO_CHECKPOINT))) {
+            if (!migracao().equals(arquivo.readLine())) {
+                System.out.println("O arquivo " + NOME_ARQUIVO_CHECKPOINT
+                        + " é de uma migração entre outras persistências; a migração começará do início");
+                return null;
+            }
+            return Integer.parseInt(arquivo.readLine().trim());
+        } catch (IOException | RuntimeException e) {
+            RegistroEventos.erro("MigracaoPersistencia", "Houve um erro ao tentar ler o arquivo "
+                    + NOME_ARQUIVO_CHECKPOINT + "; a migração começará do início", e);
+            return null;
+        }
+    }
+
+    /*
+     * Guarda no arquivo de checkpoint as persistências da migração e o número
+     * da última conta migrada
+     */
+    private void gravarCheckpoint(int ultimaMigrada) {
+        try (FileWriter arquivo = new FileWriter(NOME_ARQUIVO_CHECKPOINT)) {
+            arquivo.write(migracao() + "\n" + ultimaMigrada + "\n");
+        } catch (IOException e) {
+            RegistroEventos.erro("MigracaoPersistencia",
+                    "Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO_CHECKPOINT, e);
+        }
+    }
+
+    /*
+     * Identifica a migração no arquivo de checkpoint pelas classes da origem e
+     * do destino (cada persistência usa sempre o mesmo arquivo)
+     */
+    private String migracao() {
+        return origem.getClass().getSimpleName() + " -> " + destino.getClass().getSimpleName();
+    }
+
+    /*
+     * Coloca um lote na fila, esperando se ela estiver cheia. Retorna false,
+     * sem colocar o lote, se a gravação já terminou (e não vai mais retirar
+     * lotes da fila) ou se a thread foi interrompida
+     */
+    private boolean colocarNaFila(BlockingQueue<List<Conta>> fila, List<Conta> lote) {
+        try {
+            while (!cancelada) {
+                if (fila.offer(lote, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /*
+     * Coloca um lote na fila ou, se não for possível, lança uma exceção para
+     * interromper a leitura da origem
+     */
+    private void colocarOuCancelar(BlockingQueue<List<Conta>> fila, List<Conta> lote) {
+        if (!colocarNaFila(fila, lote)) {
+            throw new IllegalStateException("Migração cancelada");
+        }
+    }
+
+    /*
+     * Retira um lote da fila, esperando se ela estiver vazia
+     */
+    private List<Conta> retirarDaFila(BlockingQueue<List<Conta>> fila) {
+        try {
+            return fila.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Migração interrompida", e);
+        }
+    }
+
+    /*
+     * Resumo de um conjunto de contas usado na conferência: quantidade, soma
+     * dos saldos e um código de verificação que não depende da ordem das contas
+     * (dois resumos são iguais se as quantidades e os códigos são iguais e as
+     * somas diferem em menos de meio centavo; o código de hash usa apenas o
+     * código de verificação)
+     */
+    private static class Resumo {
+        private long quantidade;
+        private double soma;
+        private long codigo;
+
+        void registrar(Conta conta) {
+            quantidade++;
+            soma += conta.getSaldo();
+            // mistura os bits do número e do saldo e soma ao código
+            long valor = conta.getNumero() * 0x9E3779B97F4A7C15L ^ Double.doubleToLongBits(conta.getSaldo());
+            valor ^= valor >>> 33;
+            valor *= 0xFF51AFD7ED558CCDL;
+            valor ^= valor >>> 33;
+            codigo += valor;
+        }
+
+        @Override
+        public boolean equals(Object objeto) {
+            if (!(objeto instanceof Resumo)) {
+                return false;
+            }
+            Resumo outro = (Resumo) objeto;
+            return quantidade == outro.quantidade && codigo == outro.codigo
+                    && Math.abs(soma - outro.soma) < 0.005;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(codigo);
+        }
+
+        @Override
+        public String toString() {
+            return quantidade + " contas - soma dos saldos: R$ " + soma + " - código de verificação: "
+                    + Long.toHexString(codigo);
+        }
+    }
+
+    /**
+     * Executa a migração a partir da linha de comando.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Uso: java MigracaoPersistencia origem destino [tamanhoLote]");
+            System.out.println("(origem e destino podem ser: texto, binario, bd ou camadas)");
+            return;
+        }
+        int tamanhoLote = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        MigracaoPersistencia migracao = new MigracaoPersistencia(Persistencia.criar(args[0]),
+                Persistencia.criar(args[1]), tamanhoLote);
+        long inicio = System.nanoTime();
+        boolean migrou = migracao.migrar();
+        System.out.println("Tempo: " + (System.nanoTime() - inicio) / 1_000_000 + " ms");
+        System.exit(migrou ? 0 : 1);
+    }
+}
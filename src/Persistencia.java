@@ -1,5 +1,11 @@
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
 
 /**
  * Interface para a persistência de contas.
@@ -7,6 +13,30 @@ import java.util.List;
  * permite que a Agência trabalhe com diferentes tipos de persistência.
  */
 public interface Persistencia {
+    /**
+     * Cria uma persistência a partir do seu nome, usado pelos programas de
+     * linha de comando: texto, binario, bd ou camadas.
+     *
+     * @param tipo Nome da persistência.
+     * @return Persistência criada.
+     * @throws IllegalArgumentException Se o nome não for de nenhuma persistência.
+     */
+    static Persistencia criar(String tipo) {
+        switch (tipo) {
+            case "texto":
+                return new PersistenciaArquivoTexto();
+            case "binario":
+                return new PersistenciaArquivoBinario();
+            case "bd":
+                return new PersistenciaBancoDeDados();
+            case "camadas":
+                return new PersistenciaEmCamadas();
+            default:
+                throw new IllegalArgumentException(
+                        "Persistência desconhecida: " + tipo + " (use texto, binario, bd ou camadas)");
+        }
+    }
+
     /**
      * Realiza a configuração inicial da persistência, usada apenas na primeira vez
      */
@@ -29,4 +59,184 @@ public interface Persistencia {
      * false se houver algum problema.
      */
     boolean salvarContas(List<Conta> contas);
+
+    /**
+     * Percorre as contas persistidas, passando uma a uma para o consumidor.
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     * 
+     * A implementação padrão carrega todas as contas; as persistências que
+     * conseguem ler as contas aos poucos devem sobrescrevê-la, para não
+     * precisar ter todas as contas em memória.
+     */
+    default boolean percorrerContas(Consumer<Conta> consumidor) {
+        for (Conta conta : carregarContas()) {
+            consumidor.accept(conta);
+        }
+        return true;
+    }
+
+    /**
+     * Persiste as contas fornecidas pelo iterador, com o mesmo significado de
+     * salvarContas(List).
+     * Retorna true se os dados forem salvos corretamente e
+     * false se houver algum problema.
+     * 
+     * A implementação padrão junta todas as contas em uma lista; as
+     * persistências que conseguem salvar as contas aos poucos devem
+     * sobrescrevê-la, para não precisar ter todas as contas em memória.
+     */
+    default boolean salvarContas(Iterator<Conta> contas) {
+        List<Conta> lista = new ArrayList<>();
+        contas.forEachRemaining(lista::add);
+        return salvarContas(lista);
+    }
+
+    /**
+     * Percorre as contas persistidas com número entre os valores passados
+     * (inclusive).
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     * 
+     * Esta e as demais consultas abaixo possuem implementações padrão que
+     * percorrem todas as contas (sem carregá-las todas em memória). As
+     * persistências que conseguem responder às consultas de forma mais
+     * eficiente (por exemplo, usando índices) devem sobrescrevê-las.
+     */
+    default boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        return percorrerContas(conta -> {
+            if (conta.getNumero() >= numeroInicial && conta.getNumero() <= numeroFinal) {
+                consumidor.accept(conta);
+            }
+        });
+    }
+
+    /**
+     * Busca uma conta persistida pelo seu número.
+     * Retorna null se a conta não existir ou se houver algum problema.
+     */
+    default Conta buscarConta(int numero) {
+        List<Conta> encontradas = new ArrayList<>();
+        percorrerContas(numero, numero, encontradas::add);
+        return encontradas.isEmpty() ? null : encontradas.get(0);
+    }
+
+    /**
+     * Carrega uma página de contas: as contas com número maior que o número
+     * passado, em ordem crescente de número, até o limite de contas. Para
+     * obter a próxima página, basta passar o número da última conta da página.
+     * Retorna uma coleção vazia se houver algum problema para carregar os dados
+     */
+    default List<Conta> carregarPagina(int aPartirDoNumero, int limite) {
+        // guarda as menores contas encontradas até o momento; a maior delas
+        // fica no topo da fila para ser descartada quando aparecer uma menor
+        PriorityQueue<Conta> pagina = new PriorityQueue<>(Comparator.comparingInt(Conta::getNumero).reversed());
+        boolean percorreu = percorrerContas(conta -> {
+            if (conta.getNumero() > aPartirDoNumero) {
+                pagina.add(conta);
+                if (pagina.size() > limite) {
+                    pagina.poll();
+                }
+            }
+        });
+        if (!percorreu) {
+            return new ArrayList<>();
+        }
+        List<Conta> contas = new ArrayList<>(pagina);
+        contas.sort(Comparator.comparingInt(Conta::getNumero));
+        return contas;
+    }
+
+    /**
+     * Retorna a quantidade de contas persistidas.
+     * Retorna -1 se houver algum problema.
+     */
+    default long contarContas() {
+        long[] quantidade = { 0 };
+        return percorrerContas(conta -> quantidade[0]++) ? quantidade[0] : -1;
+    }
+
+    /**
+     * Retorna a soma dos saldos das contas persistidas.
+     * Retorna Double.NaN se houver algum problema.
+     */
+    default double somarSaldos() {
+        double[] soma = { 0 };
+        return percorrerContas(conta -> soma[0] += conta.getSaldo()) ? soma[0] : Double.NaN;
+    }
+
+    /**
+     * Retorna as contas persistidas com os maiores saldos, do maior para o
+     * menor, até a quantidade passada.
+     * Retorna uma coleção vazia se houver algum problema para carregar os dados
+     */
+    default List<Conta> maioresSaldos(int quantidade) {
+        // guarda as maiores contas encontradas até o momento; a menor delas
+        // fica no topo da fila para ser descartada quando aparecer uma maior
+        Comparator<Conta> porSaldo = Comparator.comparingDouble(Conta::getSaldo).thenComparingInt(Conta::getNumero);
+        PriorityQueue<Conta> maiores = new PriorityQueue<>(porSaldo);
+        boolean percorreu = percorrerContas(conta -> {
+            maiores.add(conta);
+            if (maiores.size() > quantidade) {
+                maiores.poll();
+            }
+        });
+        if (!percorreu) {
+            return new ArrayList<>();
+        }
+        List<Conta> contas = new ArrayList<>(maiores);
+        contas.sort(Collections.reverseOrder(porSaldo));
+        return contas;
+    }
+
+    /**
+     * Retorna as contas persistidas com saldo entre os valores passados
+     * (inclusive), do menor para o maior saldo.
+     * Retorna uma coleção vazia se houver algum problema para carregar os dados
+     */
+    default List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        List<Conta> contas = new ArrayList<>();
+        boolean percorreu = percorrerContas(conta -> {
+            if (conta.getSaldo() >= minimo && conta.getSaldo() <= maximo) {
+                contas.add(conta);
+            }
+        });
+        if (!percorreu) {
+            return new ArrayList<>();
+        }
+        contas.sort(Comparator.comparingDouble(Conta::getSaldo).thenComparingInt(Conta::getNumero));
+        return contas;
+    }
+
+    /**
+     * Retorna se a persistência aceita salvar apenas parte das contas.
+     * Se retornar true, salvarContas pode receber só as contas alteradas, e as
+     * demais contas já persistidas são mantidas. Se retornar false (o padrão),
+     * salvarContas substitui tudo o que estava salvo pelas contas recebidas.
+     */
+    default boolean salvamentoParcial() {
+        return false;
+    }
+
+    /**
+     * Retorna se as contas alteradas por cada operação da agência devem ser
+     * salvas logo após a operação (o que exige salvamento parcial).
+     * Só as persistências em que salvar poucas contas é barato (por exemplo,
+     * as que gravam em segundo plano) devem retornar true; nas demais (o
+     * padrão), as contas são salvas ao finalizar a agência, para que a
+     * gravação não atrase as operações.
+     */
+    default boolean salvamentoPorOperacao() {
+        return false;
+    }
+
+    /**
+     * Finaliza a persistência, garantindo que tudo foi salvo e liberando os
+     * recursos usados.
+     * Retorna true se tudo foi salvo corretamente e false se houver algum
+     * problema.
+     */
+    default boolean finalizar() {
+        return true;
+    }
 }
@@ -1,14 +1,22 @@
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Implementação da interface Persistencia que salva e carrega os dados de
  * contas em arquivo binário
+ * 
+ * As contas são salvas no formato colunar compactado (veja a classe
+ * ArquivoColunar). Arquivos antigos, salvos com a serialização de objetos do
+ * Java (ObjectOutputStream), continuam podendo ser carregados; eles são
+ * convertidos para o formato novo no próximo salvamento.
  */
 public class PersistenciaArquivoBinario implements Persistencia {
     // Nome do arquivo onde os dados serão salvos
@@ -34,12 +42,84 @@ public class PersistenciaArquivoBinario implements Persistencia {
     }
 
     /**
-     * Carrega as contas persistidas do arquivo texto definido no atributo
+     * Carrega as contas persistidas do arquivo binário definido no atributo
      * NOME_ARQUIVO.
      * Retorna uma coleção vazia se houver algum problema para carregar os dados
      */
     @Override
     public List<Conta> carregarContas() {
+        if (!ArquivoColunar.formatoColunar(NOME_ARQUIVO)) {
+            List<Conta> contas = carregarContasSerializadas();
+            return contas != null ? contas : new ArrayList<>();
+        }
+
+        List<Conta> contas = new ArrayList<>();
+        if (!percorrerContas(contas::add)) {
+            return new ArrayList<>();
+        }
+        return contas;
+    }
+
+    /**
+     * Percorre as contas do arquivo binário definido no atributo NOME_ARQUIVO,
+     * lendo um bloco de cada vez (arquivos no formato antigo são carregados
+     * por inteiro).
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     */
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
+        if (!ArquivoColunar.formatoColunar(NOME_ARQUIVO)) {
+            List<Conta> contas = carregarContasSerializadas();
+            if (contas == null) {
+                return false;
+            }
+            contas.forEach(consumidor);
+            return true;
+        }
+
+        try (ArquivoColunar.Leitor leitor = new ArquivoColunar.Leitor(NOME_ARQUIVO)) {
+            Conta conta = leitor.proxima();
+            while (conta != null) {
+                consumidor.accept(conta);
+                conta = leitor.proxima();
+            }
+            return true;
+        } catch (IOException e) {
+            RegistroEventos.erro("PersistenciaArquivoBinario",
+                    "Houve um erro ao tentar carregar o arquivo " + NOME_ARQUIVO, e);
+            return false;
+        }
+    }
+
+    /**
+     * Percorre as contas com número entre os valores passados (inclusive),
+     * lendo apenas os blocos do arquivo que podem conter essas contas.
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     */
+    @Override
+    public boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        if (!ArquivoColunar.formatoColunar(NOME_ARQUIVO)) {
+            return Persistencia.super.percorrerContas(numeroInicial, numeroFinal, consumidor);
+        }
+
+        try {
+            ArquivoColunar.percorrerIntervalo(NOME_ARQUIVO, numeroInicial, numeroFinal, consumidor);
+            return true;
+        } catch (IOException e) {
+            RegistroEventos.erro("PersistenciaArquivoBinario",
+                    "Houve um erro ao tentar carregar o arquivo " + NOME_ARQUIVO, e);
+            return false;
+        }
+    }
+
+    /*
+     * Carrega as contas de um arquivo no formato antigo, em que a lista de
+     * contas foi salva com a serialização de objetos do Java (retorna null se
+     * houver algum problema)
+     */
+    private List<Conta> carregarContasSerializadas() {
         try {
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream(NOME_ARQUIVO));
 
@@ -57,31 +137,54 @@ public class PersistenciaArquivoBinario implements Persistencia {
 
             return contas;
         } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Houve um erro ao tentar carregar o arquivo " + NOME_ARQUIVO);
-            System.out.println("Mensagem do erro: " + e);
-            return new ArrayList<>();
+            RegistroEventos.erro("PersistenciaArquivoBinario",
+                    "Houve um erro ao tentar carregar o arquivo " + NOME_ARQUIVO, e);
+            return null;
         }
     }
 
     /**
-     * Persiste as contas no arquivo texto definido no atributo NOME_ARQUIVO.
+     * Persiste as contas no arquivo binário definido no atributo NOME_ARQUIVO.
      * Retorna true se os dados forem salvos corretamente e false se houver algum
      * problema.
      */
     @Override
     public boolean salvarContas(List<Conta> contas) {
-        try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(NOME_ARQUIVO));
-
-            oos.writeObject(contas);
-
-            oos.close();
+        return salvarContas(contas.iterator());
+    }
 
+    /**
+     * Persiste as contas fornecidas pelo iterador no arquivo binário definido
+     * no atributo NOME_ARQUIVO, gravando um bloco de cada vez.
+     * Retorna true se os dados forem salvos corretamente e false se houver algum
+     * problema.
+     *
+     * As contas são gravadas em um arquivo temporário, que só substitui o
+     * arquivo NOME_ARQUIVO depois de gravado por inteiro. Assim, se a gravação
+     * falhar no meio (inclusive por uma exceção do iterador), as contas salvas
+     * antes são mantidas.
+     */
+    @Override
+    public boolean salvarContas(Iterator<Conta> contas) {
+        File temporario = new File(NOME_ARQUIVO + ".tmp");
+        boolean salvou = false;
+        try {
+            try (ArquivoColunar.Escritor escritor = new ArquivoColunar.Escritor(temporario.getPath())) {
+                while (contas.hasNext()) {
+                    escritor.escrever(contas.next());
+                }
+            }
+            Files.move(temporario.toPath(), new File(NOME_ARQUIVO).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            salvou = true;
             return true;
         } catch (IOException e) {
-            System.out.println("Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO);
-            System.out.println("Mensagem do erro: " + e);
+            RegistroEventos.erro("PersistenciaArquivoBinario",
+                    "Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO, e);
             return false;
+        } finally {
+            if (!salvou) {
+                temporario.delete();
+            }
         }
     }
 
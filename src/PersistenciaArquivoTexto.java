@@ -1,10 +1,16 @@
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Implementação da interface Persistencia que salva e carrega os dados de
@@ -24,8 +30,8 @@ public class PersistenciaArquivoTexto implements Persistencia {
             arquivo.close();
             return true;
         } catch (IOException e) {
-            System.out.println("Houve um erro ao tentar criar o arquivo " + NOME_ARQUIVO);
-            System.out.println("Detalhes do erro: " + e);
+            RegistroEventos.erro("PersistenciaArquivoTexto",
+                    "Houve um erro ao tentar criar o arquivo " + NOME_ARQUIVO, e);
             return false;
         }
     }
@@ -47,6 +53,18 @@ public class PersistenciaArquivoTexto implements Persistencia {
     @Override
     public List<Conta> carregarContas() {
         List<Conta> contas = new ArrayList<>();
+        percorrerContas(contas::add);
+        return contas;
+    }
+
+    /**
+     * Percorre as contas do arquivo texto definido no atributo NOME_ARQUIVO,
+     * lendo uma linha de cada vez.
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     */
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
         try {
             BufferedReader arquivo = new BufferedReader(new FileReader(NOME_ARQUIVO));
 
@@ -56,17 +74,17 @@ public class PersistenciaArquivoTexto implements Persistencia {
                 int numero = Integer.parseInt(dados[0]);
                 double saldo = Double.parseDouble(dados[1]);
 
-                Conta conta = new Conta(numero, saldo);
-                contas.add(conta);
+                consumidor.accept(new Conta(numero, saldo));
 
                 linha = arquivo.readLine();
             }
             arquivo.close();
+            return true;
         } catch (IOException e) {
-            System.out.println("Houve um erro ao tentar carregar o arquivo " + NOME_ARQUIVO);
-            System.out.println("Detalhes do erro: " + e);
+            RegistroEventos.erro("PersistenciaArquivoTexto",
+                    "Houve um erro ao tentar carregar o arquivo " + NOME_ARQUIVO, e);
+            return false;
         }
-        return contas;
     }
 
     /**
@@ -76,18 +94,42 @@ public class PersistenciaArquivoTexto implements Persistencia {
      */
     @Override
     public boolean salvarContas(List<Conta> contas) {
-        try {
-            FileWriter arquivo = new FileWriter(NOME_ARQUIVO);
+        return salvarContas(contas.iterator());
+    }
 
-            for (Conta conta : contas) {
-                arquivo.write(conta.getNumero() + "," + conta.getSaldo() + "\n");
+    /**
+     * Persiste as contas fornecidas pelo iterador no arquivo texto definido no
+     * atributo NOME_ARQUIVO, escrevendo uma linha de cada vez.
+     * Retorna true se os dados forem salvos corretamente e false se houver algum
+     * problema.
+     *
+     * As contas são escritas em um arquivo temporário, que só substitui o
+     * arquivo NOME_ARQUIVO depois de escrito por inteiro. Assim, se a gravação
+     * falhar no meio (inclusive por uma exceção do iterador), as contas salvas
+     * antes são mantidas.
+     */
+    @Override
+    public boolean salvarContas(Iterator<Conta> contas) {
+        File temporario = new File(NOME_ARQUIVO + ".tmp");
+        boolean salvou = false;
+        try {
+            try (BufferedWriter arquivo = new BufferedWriter(new FileWriter(temporario))) {
+                while (contas.hasNext()) {
+                    Conta conta = contas.next();
+                    arquivo.write(conta.getNumero() + "," + conta.getSaldo() + "\n");
+                }
             }
-            arquivo.close();
+            Files.move(temporario.toPath(), new File(NOME_ARQUIVO).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            salvou = true;
             return true;
         } catch (IOException e) {
-            System.out.println("Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO);
-            System.out.println("Detalhes do erro: " + e);
+            RegistroEventos.erro("PersistenciaArquivoTexto",
+                    "Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO, e);
             return false;
+        } finally {
+            if (!salvou) {
+                temporario.delete();
+            }
         }
     }
 
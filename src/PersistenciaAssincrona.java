@@ -0,0 +1,55 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Versão assíncrona da interface Persistencia: os métodos iniciam a operação
+ * e retornam imediatamente um resultado futuro (CompletableFuture), que é
+ * completado quando a operação termina. Assim, quem chama não fica parado
+ * esperando o disco ou o banco de dados e pode ter várias operações em
+ * andamento ao mesmo tempo.
+ *
+ * Os resultados seguem os mesmos significados dos métodos de Persistencia.
+ */
+public interface PersistenciaAssincrona {
+    /**
+     * Realiza a configuração inicial da persistência.
+     * O resultado é true se a persistência foi criada corretamente.
+     */
+    CompletableFuture<Boolean> criarPersistencia();
+
+    /**
+     * Carrega as contas persistidas (incluindo as salvas que ainda não foram
+     * gravadas).
+     * O resultado é uma coleção vazia se houver algum problema.
+     */
+    CompletableFuture<List<Conta>> carregarContas();
+
+    /**
+     * Salva as contas passadas.
+     * O resultado é true quando as contas já foram gravadas corretamente e
+     * false se houver algum problema.
+     */
+    CompletableFuture<Boolean> salvarContas(List<Conta> contas);
+
+    /**
+     * Salva uma conta.
+     * O resultado é true quando a conta já foi gravada corretamente e false
+     * se houver algum problema.
+     */
+    default CompletableFuture<Boolean> salvarConta(Conta conta) {
+        return salvarContas(List.of(conta));
+    }
+
+    /**
+     * Busca uma conta pelo seu número.
+     * O resultado é null se a conta não existir ou se houver algum problema.
+     */
+    CompletableFuture<Conta> buscarConta(int numero);
+
+    /**
+     * Grava as contas pendentes e finaliza a persistência. Nenhuma operação
+     * deve ser iniciada depois disso.
+     * O resultado é true se tudo foi gravado corretamente.
+     */
+    CompletableFuture<Boolean> finalizar();
+}
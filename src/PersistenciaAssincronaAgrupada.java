@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Implementação da interface PersistenciaAssincrona que usa uma persistência
+ * comum (arquivo texto, arquivo binário, banco de dados, etc.), acessada por
+ * uma única thread de entrada e saída.
+ *
+ * As contas salvas são guardadas como pendentes e a gravação é agendada na
+ * thread de entrada e saída. Enquanto uma gravação está em andamento, as
+ * novas contas salvas vão se acumulando e são todas gravadas juntas na
+ * gravação seguinte (se uma conta é salva várias vezes nesse meio tempo, só o
+ * último saldo é gravado). Assim, muitos salvamentos simultâneos custam
+ * poucas gravações. O resultado de cada salvamento só é completado depois
+ * que as suas contas foram de fato gravadas.
+ *
+ * Se uma gravação falha, os resultados que aguardavam por ela são completados
+ * com false, mas as contas continuam pendentes (a menos que tenham sido salvas
+ * de novo nesse meio tempo) e são gravadas junto com as próximas contas
+ * salvas ou, no máximo, ao finalizar. Assim, as buscas continuam encontrando
+ * os saldos mais recentes.
+ *
+ * As buscas de contas pendentes são respondidas imediatamente; as demais
+ * operações são executadas pela thread de entrada e saída, na ordem em que
+ * foram pedidas. Operações pedidas depois de finalizar (com exceção das
+ * buscas de contas pendentes) resultam em um futuro completado com
+ * IllegalStateException.
+ */
+public class PersistenciaAssincronaAgrupada implements PersistenciaAssincrona {
+    // persistência que realmente guarda as contas
+    private final Persistencia persistencia;
+    // thread de entrada e saída
+    private final ExecutorService executor;
+    // contas que ainda não foram gravadas e resultados que aguardam a
+    // gravação delas (acessados apenas com o objeto travado)
+    private Map<Integer, Conta> pendentes;
+    private List<CompletableFuture<Boolean>> aguardando;
+    // contas sendo gravadas no momento (acessado apenas com o objeto travado)
+    private Map<Integer, Conta> emGravacao;
+    // indica se já há uma gravação agendada para as contas pendentes
+    private boolean gravacaoAgendada;
+    // grava os lotes na persistência, mesmo que ela precise receber todas as
+    // contas a cada salvamento (acessado apenas pela thread de entrada e
+    // saída)
+    private final ImagemContas imagem;
+    private boolean finalizada;
+
+    /**
+     * Cria a persistência assíncrona.
+     *
+     * @param persistencia Persistência que realmente guardará as contas.
+     */
+    public PersistenciaAssincronaAgrupada(Persistencia persistencia) {
+        this.persistencia = persistencia;
+        pendentes = new LinkedHashMap<>();
+        aguardando = new ArrayList<>();
+        emGravacao = new LinkedHashMap<>();
+        imagem = new ImagemContas(persistencia);
+        executor = Executors.newSingleThreadExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "persistencia-assincrona");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Realiza a configuração inicial da persistência, se ela ainda não foi
+     * criada
+     */
+    @Override
+    public CompletableFuture<Boolean> criarPersistencia() {
+        return agendar(() -> persistencia.criada() || persistencia.criarPersistencia());
+    }
+
+    /**
+     * Carrega as contas persistidas, incluindo as que ainda estão pendentes
+     */
+    @Override
+    public CompletableFuture<List<Conta>> carregarContas() {
+        return agendar(() -> {
+            Map<Integer, Conta> contas = new LinkedHashMap<>();
+            for (Conta conta : persistencia.carregarContas()) {
+                contas.put(conta.getNumero(), conta);
+            }
+            // como a thread de entrada e saída é esta, não há gravação em
+            // andamento, apenas contas pendentes
+            synchronized (this) {
+                for (Conta conta : pendentes.values()) {
+                    contas.put(conta.getNumero(), new Conta(conta.getNumero(), conta.getSaldo()));
+                }
+            }
+            return new ArrayList<>(contas.values());
+        });
+    }
+
+    /**
+     * Guarda cópias das contas como pendentes e agenda a gravação delas
+     * (se ainda não houver uma agendada)
+     */
+    @Override
+    public synchronized CompletableFuture<Boolean> salvarContas(List<Conta> contas) {
+        if (finalizada) {
+            return CompletableFuture.completedFuture(false);
+        }
+        for (Conta conta : contas) {
+            pendentes.put(conta.getNumero(), new Conta(conta.getNumero(), conta.getSaldo()));
+        }
+        CompletableFuture<Boolean> resultado = new CompletableFuture<>();
+        aguardando.add(resultado);
+        if (!gravacaoAgendada) {
+            gravacaoAgendada = true;
+            executor.execute(this::gravarPendentes);
+        }
+        return resultado;
+    }
+
+    /**
+     * Busca uma conta, considerando primeiro as que ainda não foram gravadas
+     */
+    @Override
+    public CompletableFuture<Conta> buscarConta(int numero) {
+        synchronized (this) {
+            Conta conta = pendentes.get(numero);
+            if (conta == null) {
+                conta = emGravacao.get(numero);
+            }
+            if (conta != null) {
+                return CompletableFuture.completedFuture(new Conta(conta.getNumero(), conta.getSaldo()));
+            }
+        }
+        return agendar(() -> persistencia.buscarConta(numero));
+    }
+
+    /**
+     * Grava as contas pendentes, finaliza a persistência e encerra a thread de
+     * entrada e saída
+     */
+    @Override
+    public CompletableFuture<Boolean> finalizar() {
+        synchronized (this) {
+            if (finalizada) {
+                return CompletableFuture.completedFuture(false);
+            }
+            finalizada = true;
+        }
+        // a gravação das contas pendentes (se houver) já está agendada e será
+        // executada antes da finalização; se ela falhar, as contas continuam
+        // pendentes e é feita mais uma tentativa
+        CompletableFuture<Boolean> resultado = agendar(() -> {
+            boolean gravou;
+            synchronized (this) {
+                gravou = pendentes.isEmpty();
+            }
+            if (!gravou) {
+                gravou = gravarPendentes();
+            }
+            return persistencia.finalizar() && gravou;
+        });
+        executor.shutdown();
+        return resultado;
+    }
+
+    /*
+     * Agenda uma tarefa na thread de entrada e saída (se ela já foi encerrada,
+     * retorna um resultado completado com erro)
+     */
+    private <T> CompletableFuture<T> agendar(Supplier<T> tarefa) {
+        try {
+            return CompletableFuture.supplyAsync(tarefa, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new IllegalStateException("A persistência já foi finalizada", e));
+        }
+    }
+
+    /*
+     * Grava todas as contas pendentes de uma vez e completa os resultados que
+     * aguardavam por elas; se a gravação falhar, as contas voltam a ser
+     * pendentes (executado pela thread de entrada e saída)
+     */
+    private boolean gravarPendentes() {
+        Map<Integer, Conta> lote;
+        List<CompletableFuture<Boolean>> resultados;
+        synchronized (this) {
+            lote = pendentes;
+            resultados = aguardando;
+            emGravacao = lote;
+            pendentes = new LinkedHashMap<>();
+            aguardando = new ArrayList<>();
+            // as contas salvas a partir de agora serão gravadas na próxima vez
+            gravacaoAgendada = false;
+        }
+
+        boolean gravou;
+        try {
+            gravou = imagem.salvar(lote.values());
+        } catch (RuntimeException e) {
+            RegistroEventos.erro("PersistenciaAssincronaAgrupada", "Houve um erro ao tentar gravar as contas", e);
+            gravou = false;
+        }
+        synchronized (this) {
+            if (!gravou) {
+                // as contas salvas de novo durante a gravação já têm saldos
+                // mais recentes nas pendentes
+                for (Conta conta : lote.values()) {
+                    pendentes.putIfAbsent(conta.getNumero(), conta);
+                }
+            }
+            emGravacao = new LinkedHashMap<>();
+        }
+        for (CompletableFuture<Boolean> resultado : resultados) {
+            resultado.complete(gravou);
+        }
+        return gravou;
+    }
+}
@@ -1,10 +1,15 @@
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Implementação da interface Persistencia que salva e carrega os dados de
@@ -16,6 +21,11 @@ import java.util.List;
 public class PersistenciaBancoDeDados implements Persistencia {
     // Atributo que guarda o nome do banco de dados a ser criado
     private final String NOME_BD = "contas.db";
+    // Quantidade de contas salvas em cada transação
+    private final int TAMANHO_LOTE = 10000;
+    // indica se os índices já foram criados (ou conferidos) por este objeto,
+    // para não repetir os comandos a cada salvamento
+    private volatile boolean indicesVerificados = false;
 
     /**
      * Método interno (privado) para fazer a conexão com o banco de dados.
@@ -40,7 +50,7 @@ public class PersistenciaBancoDeDados implements Persistencia {
             // de exceção está apenas exibindo a mensagem de erro. Em uma
             // aplicação normal deveria ser feito o tratamento adequando.
             // Esse comentário vale para todos os tratamentos da classe.
-            System.out.println("Erro ao tentar abrir conexao: " + e.getMessage());
+            RegistroEventos.erro("PersistenciaBancoDeDados", "Erro ao tentar abrir conexao", e);
             return null;
         }
     }
@@ -73,19 +83,35 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 // executa o comando SQL
                 comando.executeUpdate(sql);
 
+                // cria o índice que permite encontrar rapidamente uma conta
+                // pelo seu número
+                criarIndices(comando);
+                indicesVerificados = true;
+
                 // ATENÇÃO: é muito importante fechar o comando e a conexão com
                 // o banco de dados para liberar os recursos e acessos.
                 comando.close();
                 conexao.close();
                 return true;
             } catch (Exception e) {
-                System.out.println("Houve um erro ao tentar criar o banco de dados " + NOME_BD);
-                System.out.println("Mensagem do erro: " + e);
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar criar o banco de dados " + NOME_BD, e);
             }
         }
         return false;
     }
 
+    /*
+     * Cria os índices da tabela CONTA, se ainda não existirem (bancos criados
+     * por versões anteriores não os possuem)
+     */
+    private void criarIndices(Statement comando) throws SQLException {
+        comando.executeUpdate("CREATE INDEX IF NOT EXISTS IDX_CONTA_NUMERO ON CONTA(NUMERO);");
+        // índice pelo saldo, usado nas consultas de maiores saldos e de
+        // contas com saldo em um intervalo
+        comando.executeUpdate("CREATE INDEX IF NOT EXISTS IDX_CONTA_SALDO ON CONTA(SALDO, NUMERO);");
+    }
+
     /**
      * Retorna se a persistência já foi criada, ou seja, se o banco de dados NOME_BD
      * existe
@@ -101,6 +127,21 @@ public class PersistenciaBancoDeDados implements Persistencia {
      */
     @Override
     public List<Conta> carregarContas() {
+        List<Conta> contas = new ArrayList<>();
+        if (!percorrerContas(contas::add)) {
+            return new ArrayList<>();
+        }
+        return contas;
+    }
+
+    /**
+     * Percorre as contas persistidas no banco de dados, em ordem de número,
+     * passando uma a uma para o consumidor à medida que as linhas são lidas.
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     */
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
         // Obtém a conexão com o banco de dados
         Connection conexao = conectar();
 
@@ -111,8 +152,8 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 Statement comando = conexao.createStatement();
 
                 // Monta uma string com o comando SQL para buscar os dados das
-                // contas na tabela CONTA
-                String sql = "SELECT * FROM CONTA;";
+                // contas na tabela CONTA (em ordem de número, usando o índice)
+                String sql = "SELECT * FROM CONTA ORDER BY NUMERO;";
 
                 // Repare que para buscar os dados usamos um outro método: o
                 // executeQuery. Ele retorna os resultados em um objeto do tipo
@@ -120,10 +161,6 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 // cada linha da tabela
                 ResultSet resultado = comando.executeQuery(sql);
 
-                // Criamos um ArrayList a ser preenchido com as contas buscadas no
-                // no banco.
-                List<Conta> contas = new ArrayList<>();
-
                 // O método next() faz o 'cursor" do ResultSet apontar cada hora
                 // para uma linha da tabela. Enquanto existirem linhas ele muda
                 // o cursor e retorna true.
@@ -136,9 +173,9 @@ public class PersistenciaBancoDeDados implements Persistencia {
                     double saldo = resultado.getDouble("SALDO");
 
                     // Agora que já temos os dados podemos criar um objeto da
-                    // classe Conta e adicioná-lo à lista a ser retornada
-                    Conta conta = new Conta(numero, saldo);
-                    contas.add(conta);
+                    // classe Conta e passá-lo para o consumidor. Assim as
+                    // contas não precisam ficar todas em memória.
+                    consumidor.accept(new Conta(numero, saldo));
                 }
 
                 // ATENÇÃO: é muito importante fechar o comando e a conexão com
@@ -148,14 +185,13 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 comando.close();
                 conexao.close();
 
-                // Enfim, retornamos as contas que foram buscadas do banco de dados
-                return contas;
+                return true;
             } catch (Exception e) {
-                System.out.println("Houve um erro ao tentar carregar os dados do banco " + NOME_BD);
-                System.out.println("Mensagem do erro: " + e);
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar carregar os dados do banco " + NOME_BD, e);
             }
         }
-        return new ArrayList<>();
+        return false;
     }
 
     /**
@@ -171,22 +207,277 @@ public class PersistenciaBancoDeDados implements Persistencia {
      */
     @Override
     public boolean salvarContas(List<Conta> contas) {
-        try {
-            // percorre a coleção de contas e, para cada uma delas, se ela ainda não
-            // existe no banco de dados, é criada; se já existe, é atualizada.
-            for (Conta conta : contas) {
-                if (contaExiste(conta.getNumero())) {
-                    atualizarConta(conta);
-                } else {
-                    inserirConta(conta);
+        return salvarContas(contas.iterator());
+    }
+
+    /**
+     * Persiste no banco de dados as contas fornecidas pelo iterador.
+     * Retorna true se os dados forem salvos corretamente e false se houver algum
+     * problema.
+     * 
+     * Todas as contas são salvas usando uma única conexão. Elas são agrupadas
+     * em lotes de TAMANHO_LOTE contas e cada lote é salvo em uma transação,
+     * o que é muito mais rápido que salvar uma conta de cada vez.
+     */
+    @Override
+    public boolean salvarContas(Iterator<Conta> contas) {
+        // Obtém a conexão com o banco de dados
+        Connection conexao = conectar();
+
+        // Se conseguiu conectar
+        if (conexao != null) {
+            try {
+                if (!indicesVerificados) {
+                    Statement comando = conexao.createStatement();
+                    criarIndices(comando);
+                    comando.close();
+                    indicesVerificados = true;
+                }
+
+                // Um PreparedStatement é um comando SQL com "lacunas" (os '?')
+                // que são preenchidas a cada execução. O comando é analisado
+                // pelo banco uma única vez e pode ser executado em lotes.
+                PreparedStatement atualizacao = conexao.prepareStatement(
+                        "UPDATE CONTA SET SALDO = ? WHERE NUMERO = ?;");
+                PreparedStatement insercao = conexao.prepareStatement(
+                        "INSERT INTO CONTA(NUMERO, SALDO) VALUES (?, ?);");
+
+                // Desligar o "auto commit" faz com que os comandos só sejam
+                // efetivados quando chamamos commit (ou seja, em uma transação)
+                conexao.setAutoCommit(false);
+
+                // o lote é um mapa pelo número da conta para que, se a mesma
+                // conta aparecer mais de uma vez, apenas o último saldo seja salvo
+                Map<Integer, Conta> lote = new LinkedHashMap<>();
+                while (contas.hasNext()) {
+                    Conta conta = contas.next();
+                    lote.put(conta.getNumero(), conta);
+                    if (lote.size() == TAMANHO_LOTE || !contas.hasNext()) {
+                        salvarLote(lote, atualizacao, insercao);
+                        conexao.commit();
+                        lote.clear();
+                    }
                 }
+
+                // ATENÇÃO: é muito importante fechar os comandos e a conexão com
+                // o banco de dados para liberar os recursos e acessos.
+                atualizacao.close();
+                insercao.close();
+                return true;
+            } catch (SQLException e) {
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar salvar as contas no banco " + NOME_BD, e);
+                try {
+                    conexao.rollback();
+                } catch (SQLException erroAoDesfazer) {
+                    // a conexão já apresentou erro; não há o que fazer aqui
+                }
+            } finally {
+                // a conexão é fechada mesmo se houver erro (inclusive ao
+                // desfazer a transação ou ao obter as contas do iterador)
+                try {
+                    conexao.close();
+                } catch (SQLException erroAoFechar) {
+                    // não há o que fazer aqui
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Salva um lote de contas: primeiro tenta atualizar todas elas e depois
+     * insere as que ainda não existiam (as que nenhuma linha foi atualizada)
+     */
+    private void salvarLote(Map<Integer, Conta> contas, PreparedStatement atualizacao, PreparedStatement insercao)
+            throws SQLException {
+        List<Conta> lote = new ArrayList<>(contas.values());
+        for (Conta conta : lote) {
+            atualizacao.setDouble(1, conta.getSaldo());
+            atualizacao.setInt(2, conta.getNumero());
+            atualizacao.addBatch();
+        }
+        int[] atualizadas = atualizacao.executeBatch();
+
+        boolean haInsercoes = false;
+        for (int i = 0; i < lote.size(); i++) {
+            if (atualizadas[i] == 0) {
+                insercao.setInt(1, lote.get(i).getNumero());
+                insercao.setDouble(2, lote.get(i).getSaldo());
+                insercao.addBatch();
+                haInsercoes = true;
+            }
+        }
+        if (haInsercoes) {
+            insercao.executeBatch();
+        }
+    }
+
+    /**
+     * Retorna true, pois salvarContas insere ou atualiza apenas as contas
+     * recebidas, mantendo as demais contas do banco.
+     */
+    @Override
+    public boolean salvamentoParcial() {
+        return true;
+    }
+
+    /**
+     * Percorre as contas com número entre os valores passados (inclusive),
+     * deixando o banco filtrar as contas usando o índice de números.
+     * Retorna true se todas as contas foram percorridas e false se houver
+     * algum problema.
+     */
+    @Override
+    public boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        return consultarContas("SELECT NUMERO, SALDO FROM CONTA WHERE NUMERO BETWEEN ? AND ? ORDER BY NUMERO;",
+                consumidor, numeroInicial, numeroFinal);
+    }
+
+    /**
+     * Busca uma conta no banco de dados pelo seu número.
+     * Retorna null se a conta não existir ou se houver algum problema.
+     */
+    @Override
+    public Conta buscarConta(int numero) {
+        List<Conta> contas = buscarContas("SELECT NUMERO, SALDO FROM CONTA WHERE NUMERO = ?;", numero);
+        return contas.isEmpty() ? null : contas.get(0);
+    }
+
+    /**
+     * Busca no banco de dados uma página de contas: as contas com número maior
+     * que o número passado, em ordem crescente de número, até o limite.
+     * Retorna uma coleção vazia se houver algum problema para buscar os dados
+     */
+    @Override
+    public List<Conta> carregarPagina(int aPartirDoNumero, int limite) {
+        return buscarContas("SELECT NUMERO, SALDO FROM CONTA WHERE NUMERO > ? ORDER BY NUMERO LIMIT ?;",
+                aPartirDoNumero, limite);
+    }
+
+    /**
+     * Retorna a quantidade de contas no banco de dados (calculada pelo banco).
+     * Retorna -1 se houver algum problema.
+     */
+    @Override
+    public long contarContas() {
+        double quantidade = consultarValor("SELECT COUNT(*) FROM CONTA;");
+        return Double.isNaN(quantidade) ? -1 : (long) quantidade;
+    }
+
+    /**
+     * Retorna a soma dos saldos das contas no banco de dados (calculada pelo
+     * banco).
+     * Retorna Double.NaN se houver algum problema.
+     */
+    @Override
+    public double somarSaldos() {
+        // a função TOTAL do SQLite é como a SUM, mas retorna 0.0 (e não NULL)
+        // quando a tabela está vazia
+        return consultarValor("SELECT TOTAL(SALDO) FROM CONTA;");
+    }
+
+    /**
+     * Busca no banco de dados as contas com os maiores saldos, do maior para o
+     * menor. A ordenação e o limite são feitos pelo próprio banco, usando o
+     * índice de saldos.
+     * Retorna uma coleção vazia se houver algum problema para buscar os dados
+     * 
+     * @param quantidade Quantidade máxima de contas a retornar.
+     */
+    @Override
+    public List<Conta> maioresSaldos(int quantidade) {
+        return buscarContas("SELECT NUMERO, SALDO FROM CONTA ORDER BY SALDO DESC, NUMERO DESC LIMIT ?;",
+                quantidade);
+    }
+
+    /**
+     * Busca no banco de dados as contas com saldo entre os valores passados
+     * (inclusive), do menor para o maior saldo, usando o índice de saldos.
+     * Retorna uma coleção vazia se houver algum problema para buscar os dados
+     * 
+     * @param minimo Menor saldo.
+     * @param maximo Maior saldo.
+     */
+    @Override
+    public List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        return buscarContas("SELECT NUMERO, SALDO FROM CONTA WHERE SALDO BETWEEN ? AND ? ORDER BY SALDO, NUMERO;",
+                minimo, maximo);
+    }
+
+    /*
+     * Executa uma consulta que retorna contas (colunas NUMERO e SALDO),
+     * preenchendo as lacunas ('?') com os parâmetros passados
+     */
+    private List<Conta> buscarContas(String sql, Object... parametros) {
+        List<Conta> contas = new ArrayList<>();
+        if (!consultarContas(sql, contas::add, parametros)) {
+            contas.clear();
+        }
+        return contas;
+    }
+
+    /*
+     * Executa uma consulta que retorna contas (colunas NUMERO e SALDO),
+     * passando cada conta para o consumidor à medida que as linhas são lidas.
+     * Retorna false se houver algum problema.
+     */
+    private boolean consultarContas(String sql, Consumer<Conta> consumidor, Object... parametros) {
+        // Obtém a conexão com o banco de dados
+        Connection conexao = conectar();
+
+        // Se conseguiu conectar
+        if (conexao != null) {
+            try {
+                PreparedStatement comando = conexao.prepareStatement(sql);
+                for (int i = 0; i < parametros.length; i++) {
+                    comando.setObject(i + 1, parametros[i]);
+                }
+
+                ResultSet resultado = comando.executeQuery();
+                while (resultado.next()) {
+                    consumidor.accept(new Conta(resultado.getInt("NUMERO"), resultado.getDouble("SALDO")));
+                }
+
+                // ATENÇÃO: é muito importante fechar o comando e a conexão com
+                // o banco de dados para liberar os recursos e acessos.
+                resultado.close();
+                comando.close();
+                conexao.close();
+                return true;
+            } catch (Exception e) {
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar consultar as contas no banco " + NOME_BD, e);
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Executa uma consulta que retorna um único valor numérico (como COUNT ou
+     * SUM). Retorna Double.NaN se houver algum problema.
+     */
+    private double consultarValor(String sql) {
+        // Obtém a conexão com o banco de dados
+        Connection conexao = conectar();
+
+        // Se conseguiu conectar
+        if (conexao != null) {
+            try {
+                Statement comando = conexao.createStatement();
+                ResultSet resultado = comando.executeQuery(sql);
+                double valor = resultado.next() ? resultado.getDouble(1) : Double.NaN;
+
+                resultado.close();
+                comando.close();
+                conexao.close();
+                return valor;
+            } catch (Exception e) {
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar consultar o banco " + NOME_BD, e);
             }
-            return true;
-        } catch (SQLException e) {
-            // apenas retorna false porque os métodos chamados acima já exibem suas
-            // próprias mensagens de erro.
-            return false;
         }
+        return Double.NaN;
     }
 
     public boolean contaExiste(int numero) {
@@ -224,9 +515,8 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 // Enfim, retornamos se existe no banco de dados uma conta com o número passado.
                 return existe;
             } catch (Exception e) {
-                System.out.println(
-                        "Houve um erro ao tentar verificar se a conta " + numero + " existe no banco " + NOME_BD);
-                System.out.println("Mensagem do erro: " + e);
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar verificar se a conta " + numero + " existe no banco " + NOME_BD, e);
             }
         }
         return false;
@@ -264,9 +554,8 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 comando.close();
                 conexao.close();
             } catch (SQLException e) {
-                System.out.println(
-                        "Houve um erro ao tentar persistir a conta " + conta.getNumero() + " no banco " + NOME_BD);
-                System.out.println("Mensagem do erro: " + e);
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar persistir a conta " + conta.getNumero() + " no banco " + NOME_BD, e);
                 throw e; // relança a exceção para avisar quem chamou o método
             }
         }
@@ -309,9 +598,8 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 comando.close();
                 conexao.close();
             } catch (Exception e) {
-                System.out.println(
-                        "Houve um erro ao tentar atualizar a conta " + conta.getNumero() + " no banco " + NOME_BD);
-                System.out.println("Mensagem do erro: " + e);
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar atualizar a conta " + conta.getNumero() + " no banco " + NOME_BD, e);
                 throw e; // relança a exceção para avisar quem chamou o método
             }
         }
@@ -350,9 +638,8 @@ public class PersistenciaBancoDeDados implements Persistencia {
                 comando.close();
                 conexao.close();
             } catch (Exception e) {
-                System.out.println(
-                        "Houve um erro ao tentar remover a conta " + conta.getNumero() + " do banco " + NOME_BD);
-                System.out.println("Mensagem do erro: " + e);
+                RegistroEventos.erro("PersistenciaBancoDeDados",
+                        "Houve um erro ao tentar remover a conta " + conta.getNumero() + " do banco " + NOME_BD, e);
                 throw e; // relança a exceção para avisar quem chamou o método
             }
         }
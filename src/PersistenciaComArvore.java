@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Implementação da interface Persistencia que "decora" uma outra persistência
+ * mantendo uma árvore de Merkle das contas persistidas (veja ArvoreMerkle).
+ *
+ * Cada conta salva marca a sua folha na árvore depois de ser entregue à
+ * persistência decorada; ao obter a árvore, apenas as faixas marcadas são
+ * lidas de novo da persistência decorada. Assim, a árvore reflete o que a
+ * persistência decorada retorna ao percorrer as contas e pode ser comparada
+ * com a árvore da agência (veja Agencia.reconciliarPersistencia) sem ler
+ * todas as contas. Se a persistência decorada grava em segundo plano (como a
+ * PersistenciaEscritaAtrasada), isso inclui as contas que ela ainda não
+ * gravou, então a árvore não garante que elas já chegaram ao disco.
+ *
+ * A árvore é construída ao carregar as contas, aproveitando a leitura, ou na
+ * primeira vez em que é obtida. Como apenas as faixas salvas são relidas,
+ * alterações feitas na persistência decorada por fora (sem passar por esta
+ * classe) só são percebidas depois de verificarTudo.
+ */
+public class PersistenciaComArvore implements Persistencia {
+    // persistência que realmente guarda as contas
+    private final Persistencia persistencia;
+    // árvore das contas persistidas
+    private final ArvoreMerkle arvore;
+    // indica se a árvore já foi construída (acessado apenas com o objeto
+    // travado)
+    private boolean construida;
+
+    /**
+     * Cria a persistência com árvore de Merkle.
+     *
+     * @param persistencia Persistência que realmente guardará as contas.
+     */
+    public PersistenciaComArvore(Persistencia persistencia) {
+        this.persistencia = persistencia;
+        arvore = new ArvoreMerkle();
+        construida = false;
+    }
+
+    /**
+     * Realiza a configuração inicial da persistência decorada (sem contas, a
+     * árvore já está construída)
+     */
+    @Override
+    public boolean criarPersistencia() {
+        synchronized (this) {
+            construida = true;
+        }
+        return persistencia.criarPersistencia();
+    }
+
+    /**
+     * Retorna se a persistência decorada já foi criada
+     */
+    @Override
+    public boolean criada() {
+        return persistencia.criada();
+    }
+
+    /**
+     * Carrega as contas e, se a árvore ainda não foi construída, a constrói a
+     * partir delas
+     */
+    @Override
+    public List<Conta> carregarContas() {
+        List<Conta> contas = persistencia.carregarContas();
+        synchronized (this) {
+            if (!construida) {
+                construida = arvore.reconstruir((numeroInicial, numeroFinal, consumidor) -> {
+                    for (Conta conta : contas) {
+                        consumidor.accept(conta);
+                    }
+                    return true;
+                });
+            }
+        }
+        return contas;
+    }
+
+    /**
+     * Salva as contas na persistência decorada e marca as suas folhas na
+     * árvore
+     */
+    @Override
+    public boolean salvarContas(List<Conta> contas) {
+        // as folhas são marcadas mesmo se houver erro, pois não se sabe o que
+        // chegou a ser gravado
+        boolean salvou = persistencia.salvarContas(contas);
+        for (Conta conta : contas) {
+            arvore.marcar(conta.getNumero());
+        }
+        return salvou;
+    }
+
+    /**
+     * Salva as contas na persistência decorada, guardando os seus números
+     * para marcar as suas folhas na árvore depois de salvá-las
+     */
+    @Override
+    public boolean salvarContas(Iterator<Conta> contas) {
+        int[][] numeros = { new int[1024] };
+        int[] quantidade = { 0 };
+        boolean salvou = persistencia.salvarContas(new Iterator<Conta>() {
+            @Override
+            public boolean hasNext() {
+                return contas.hasNext();
+            }
+
+            @Override
+            public Conta next() {
+                Conta conta = contas.next();
+                if (quantidade[0] == numeros[0].length) {
+                    numeros[0] = Arrays.copyOf(numeros[0], 2 * quantidade[0]);
+                }
+                numeros[0][quantidade[0]++] = conta.getNumero();
+                return conta;
+            }
+        });
+        for (int i = 0; i < quantidade[0]; i++) {
+            arvore.marcar(numeros[0][i]);
+        }
+        return salvou;
+    }
+
+    /**
+     * Retorna a árvore das contas persistidas, atualizada a partir das faixas
+     * salvas desde a última vez (ou construída, na primeira vez).
+     *
+     * @return Árvore atualizada ou null se houve algum problema ao ler as
+     *         contas.
+     */
+    public synchronized ArvoreMerkle getArvoreMerkle() {
+        boolean atualizou;
+        if (!construida) {
+            atualizou = construida = arvore.reconstruir(persistencia::percorrerContas);
+        } else {
+            atualizou = arvore.atualizar(persistencia::percorrerContas);
+        }
+        if (!atualizou) {
+            RegistroEventos.erro("PersistenciaComArvore",
+                    "Houve um erro ao tentar ler as contas para a árvore de Merkle", null);
+            return null;
+        }
+        return arvore;
+    }
+
+    /**
+     * Faz com que todas as contas sejam lidas de novo na próxima vez em que a
+     * árvore for obtida, para perceber também alterações feitas na
+     * persistência decorada por fora (como arquivos corrompidos).
+     */
+    public synchronized void verificarTudo() {
+        construida = false;
+    }
+
+    @Override
+    public Conta buscarConta(int numero) {
+        return persistencia.buscarConta(numero);
+    }
+
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
+        return persistencia.percorrerContas(consumidor);
+    }
+
+    @Override
+    public boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        return persistencia.percorrerContas(numeroInicial, numeroFinal, consumidor);
+    }
+
+    @Override
+    public List<Conta> carregarPagina(int aPartirDoNumero, int limite) {
+        return persistencia.carregarPagina(aPartirDoNumero, limite);
+    }
+
+    @Override
+    public long contarContas() {
+        return persistencia.contarContas();
+    }
+
+    @Override
+    public double somarSaldos() {
+        return persistencia.somarSaldos();
+    }
+
+    @Override
+    public List<Conta> maioresSaldos(int quantidade) {
+        return persistencia.maioresSaldos(quantidade);
+    }
+
+    @Override
+    public List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        return persistencia.contasComSaldoEntre(minimo, maximo);
+    }
+
+    @Override
+    public boolean salvamentoParcial() {
+        return persistencia.salvamentoParcial();
+    }
+
+    @Override
+    public boolean salvamentoPorOperacao() {
+        return persistencia.salvamentoPorOperacao();
+    }
+
+    @Override
+    public boolean finalizar() {
+        return persistencia.finalizar();
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Implementação da interface Persistencia que "decora" uma outra persistência
+ * com um filtro de Bloom dos números das contas existentes (veja FiltroBloom).
+ *
+ * Buscar uma conta inexistente (um número digitado errado, por exemplo)
+ * custaria uma consulta ao banco de dados ou uma leitura do arquivo; com o
+ * filtro, a maioria desses números é recusada em nanossegundos, sem acessar a
+ * persistência decorada. Os números das contas salvas são adicionados ao
+ * filtro antes de chegarem à persistência decorada, então uma conta existente
+ * nunca é recusada.
+ *
+ * O filtro é gravado no arquivo contas.filtro ao finalizar, junto com uma
+ * assinatura das contas persistidas: a quantidade de contas e um código de
+ * verificação dos seus números (que não depende da ordem das contas). Na
+ * próxima execução, ao carregar as contas, o filtro é lido desse arquivo se a
+ * assinatura das contas carregadas é a mesma (ou seja, se nenhuma conta foi
+ * criada ou renumerada sem passar por esta classe) e se a quantidade de
+ * contas não passou da capacidade do filtro. Caso contrário, ou se o filtro
+ * for necessário antes de as contas serem carregadas, ele é reconstruído (com
+ * o dobro da quantidade de contas) a partir delas.
+ */
+public class PersistenciaComFiltro implements Persistencia {
+    // nome do arquivo onde o filtro é gravado
+    private final String NOME_ARQUIVO = "contas.filtro";
+    // taxa de falsos positivos do filtro
+    private final double TAXA_FALSOS_POSITIVOS = 0.01;
+    // quantidade mínima de contas para a qual o filtro é dimensionado
+    private final int QUANTIDADE_MINIMA = 1 << 16;
+    // identifica o formato do arquivo do filtro (arquivos de versões
+    // anteriores, com apenas a quantidade de contas, são ignorados)
+    private final int FORMATO_ARQUIVO = 0x46424C32;
+
+    // persistência que realmente guarda as contas
+    private final Persistencia persistencia;
+    // filtro dos números das contas (null enquanto não foi lido ou construído)
+    private volatile FiltroBloom filtro;
+    // os salvamentos travam uma faixa e a reconstrução do filtro trava tudo,
+    // para que nenhuma conta salva durante a reconstrução fique fora do filtro
+    private final TravaParticionada trava;
+
+    /**
+     * Cria a persistência com filtro.
+     *
+     * @param persistencia Persistência que realmente guardará as contas.
+     */
+    public PersistenciaComFiltro(Persistencia persistencia) {
+        this.persistencia = persistencia;
+        trava = new TravaParticionada();
+    }
+
+    /**
+     * Realiza a configuração inicial da persistência decorada e cria um
+     * filtro vazio
+     */
+    @Override
+    public boolean criarPersistencia() {
+        filtro = new FiltroBloom(QUANTIDADE_MINIMA, TAXA_FALSOS_POSITIVOS);
+        new File(NOME_ARQUIVO).delete();
+        return persistencia.criarPersistencia();
+    }
+
+    /**
+     * Retorna se a persistência decorada já foi criada
+     */
+    @Override
+    public boolean criada() {
+        return persistencia.criada();
+    }
+
+    /**
+     * Carrega as contas e, se o filtro ainda não foi obtido, o lê do arquivo
+     * (conferindo a assinatura das contas carregadas) ou o reconstrói a
+     * partir delas. As contas são percorridas, e não carregadas, pois uma
+     * carga com erro retorna uma coleção vazia, que não pode ser distinguida
+     * de uma persistência sem contas; nesse caso, o filtro continua sem ser
+     * obtido (um filtro vazio recusaria as contas existentes).
+     */
+    @Override
+    public List<Conta> carregarContas() {
+        if (filtro != null) {
+            return persistencia.carregarContas();
+        }
+        trava.travarTudo();
+        try {
+            List<Conta> contas = new ArrayList<>();
+            if (!persistencia.percorrerContas(contas::add)) {
+                return new ArrayList<>();
+            }
+            if (filtro == null) {
+                long codigo = 0;
+                for (Conta conta : contas) {
+                    codigo += misturar(conta.getNumero());
+                }
+                filtro = lerFiltro(contas.size(), codigo);
+            }
+            if (filtro == null) {
+                FiltroBloom novo = new FiltroBloom(Math.max(QUANTIDADE_MINIMA, 2L * contas.size()),
+                        TAXA_FALSOS_POSITIVOS);
+                for (Conta conta : contas) {
+                    novo.adicionar(conta.getNumero());
+                }
+                filtro = novo;
+            }
+            return contas;
+        } finally {
+            trava.liberarTudo();
+        }
+    }
+
+    /**
+     * Adiciona os números das contas ao filtro e as salva na persistência
+     * decorada
+     */
+    @Override
+    public boolean salvarContas(List<Conta> contas) {
+        int faixa = trava.travarOperacao();
+        try {
+            FiltroBloom filtroAtual = filtro;
+            if (filtroAtual != null) {
+                for (Conta conta : contas) {
+                    filtroAtual.adicionar(conta.getNumero());
+                }
+            }
+            return persistencia.salvarContas(contas);
+        } finally {
+            trava.liberarOperacao(faixa);
+        }
+    }
+
+    /**
+     * Adiciona os números das contas ao filtro à medida que elas são salvas
+     * na persistência decorada
+     */
+    @Override
+    public boolean salvarContas(Iterator<Conta> contas) {
+        int faixa = trava.travarOperacao();
+        try {
+            FiltroBloom filtroAtual = filtro;
+            if (filtroAtual == null) {
+                return persistencia.salvarContas(contas);
+            }
+            return persistencia.salvarContas(new Iterator<Conta>() {
+                @Override
+                public boolean hasNext() {
+                    return contas.hasNext();
+                }
+
+                @Override
+                public Conta next() {
+                    Conta conta = contas.next();
+                    filtroAtual.adicionar(conta.getNumero());
+                    return conta;
+                }
+            });
+        } finally {
+            trava.liberarOperacao(faixa);
+        }
+    }
+
+    /**
+     * Busca uma conta, recusando pelo filtro os números que com certeza não
+     * existem
+     */
+    @Override
+    public Conta buscarConta(int numero) {
+        if (!podeExistir(numero)) {
+            return null;
+        }
+        return persistencia.buscarConta(numero);
+    }
+
+    /**
+     * Retorna se uma conta pode existir, consultando apenas o filtro.
+     *
+     * @param numero Número da conta.
+     * @return false se a conta com certeza não existe e true se ela
+     *         provavelmente existe.
+     */
+    public boolean podeExistir(int numero) {
+        FiltroBloom filtroAtual = obterFiltro();
+        return filtroAtual == null || filtroAtual.podeConter(numero);
+    }
+
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
+        return persistencia.percorrerContas(consumidor);
+    }
+
+    @Override
+    public boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        return persistencia.percorrerContas(numeroInicial, numeroFinal, consumidor);
+    }
+
+    @Override
+    public List<Conta> carregarPagina(int aPartirDoNumero, int limite) {
+        return persistencia.carregarPagina(aPartirDoNumero, limite);
+    }
+
+    @Override
+    public long contarContas() {
+        return persistencia.contarContas();
+    }
+
+    @Override
+    public double somarSaldos() {
+        return persistencia.somarSaldos();
+    }
+
+    @Override
+    public List<Conta> maioresSaldos(int quantidade) {
+        return persistencia.maioresSaldos(quantidade);
+    }
+
+    @Override
+    public List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        return persistencia.contasComSaldoEntre(minimo, maximo);
+    }
+
+    @Override
+    public boolean salvamentoParcial() {
+        return persistencia.salvamentoParcial();
+    }
+
+    @Override
+    public boolean salvamentoPorOperacao() {
+        return persistencia.salvamentoPorOperacao();
+    }
+
+    /**
+     * Finaliza a persistência decorada e grava o filtro com a assinatura das
+     * contas persistidas (calculada depois de finalizar, para incluir as
+     * contas que a persistência decorada ainda não tinha gravado)
+     */
+    @Override
+    public boolean finalizar() {
+        boolean finalizou = persistencia.finalizar();
+        FiltroBloom filtroAtual = filtro;
+        long[] assinatura = { 0, 0 };
+        if (filtroAtual == null || !persistencia.percorrerContas(conta -> {
+            assinatura[0]++;
+            assinatura[1] += misturar(conta.getNumero());
+        })) {
+            // sem a assinatura, um filtro antigo não poderia ser conferido
+            new File(NOME_ARQUIVO).delete();
+            return finalizou;
+        }
+        try (DataOutputStream saida = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(NOME_ARQUIVO)))) {
+            saida.writeInt(FORMATO_ARQUIVO);
+            saida.writeLong(assinatura[0]);
+            saida.writeLong(assinatura[1]);
+            filtroAtual.gravar(saida);
+        } catch (IOException e) {
+            RegistroEventos.erro("PersistenciaComFiltro",
+                    "Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO, e);
+            new File(NOME_ARQUIVO).delete();
+        }
+        return finalizou;
+    }
+
+    /*
+     * Retorna o filtro, reconstruindo-o a partir das contas se ele ainda não
+     * existe (null se não foi possível reconstruí-lo). O arquivo não é usado
+     * aqui, pois conferir a sua assinatura exigiria ler todas as contas, como
+     * a reconstrução.
+     */
+    private FiltroBloom obterFiltro() {
+        FiltroBloom filtroAtual = filtro;
+        if (filtroAtual != null) {
+            return filtroAtual;
+        }
+        trava.travarTudo();
+        try {
+            if (filtro == null) {
+                filtro = reconstruirFiltro();
+            }
+            return filtro;
+        } finally {
+            trava.liberarTudo();
+        }
+    }
+
+    /*
+     * Lê o filtro do arquivo, dada a assinatura das contas atuais; retorna
+     * null se o arquivo não existe, não pôde ser lido, é de outro formato, tem
+     * uma assinatura diferente ou está cheio demais
+     */
+    private FiltroBloom lerFiltro(long quantidadeAtual, long codigoAtual) {
+        if (!new File(NOME_ARQUIVO).exists()) {
+            return null;
+        }
+        try (DataInputStream entrada = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(NOME_ARQUIVO)))) {
+            if (entrada.readInt() != FORMATO_ARQUIVO) {
+                return null;
+            }
+            long quantidade = entrada.readLong();
+            long codigo = entrada.readLong();
+            if (quantidade != quantidadeAtual || codigo != codigoAtual) {
+                return null;
+            }
+            FiltroBloom lido = FiltroBloom.ler(entrada);
+            if (quantidade > lido.getCapacidade()) {
+                return null;
+            }
+            return lido;
+        } catch (IOException e) {
+            RegistroEventos.erro("PersistenciaComFiltro",
+                    "Houve um erro ao tentar ler o arquivo " + NOME_ARQUIVO + "; o filtro será reconstruído", e);
+            return null;
+        }
+    }
+
+    /*
+     * Constrói o filtro percorrendo todas as contas da persistência decorada
+     * (retorna null se houver algum problema, já que um filtro incompleto
+     * recusaria contas existentes)
+     */
+    private FiltroBloom reconstruirFiltro() {
+        List<Integer> numeros = new ArrayList<>();
+        if (!persistencia.percorrerContas(conta -> numeros.add(conta.getNumero()))) {
+            RegistroEventos.erro("PersistenciaComFiltro",
+                    "Houve um erro ao tentar reconstruir o filtro de contas", null);
+            return null;
+        }
+        FiltroBloom novo = new FiltroBloom(Math.max(QUANTIDADE_MINIMA, 2L * numeros.size()),
+                TAXA_FALSOS_POSITIVOS);
+        for (int numero : numeros) {
+            novo.adicionar(numero);
+        }
+        return novo;
+    }
+
+    /*
+     * Mistura os bits do número de uma conta para o código de verificação
+     * da assinatura (que é a soma dos números misturados)
+     */
+    private static long misturar(int numero) {
+        long valor = numero * 0x9E3779B97F4A7C15L;
+        valor ^= valor >>> 33;
+        valor *= 0xFF51AFD7ED558CCDL;
+        valor ^= valor >>> 33;
+        return valor;
+    }
+}
@@ -0,0 +1,555 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Implementação da interface Persistencia que guarda as contas em duas
+ * camadas:
+ * - camada quente: as contas usadas recentemente ficam em um arquivo mapeado
+ * em memória (contas.quentes), onde salvar ou buscar uma conta custa apenas
+ * uma escrita ou leitura de memória;
+ * - camada fria: as demais contas ficam em outra persistência que aceita
+ * salvamento parcial (por padrão, o banco de dados), que ocupa pouco espaço
+ * mas é mais lenta.
+ *
+ * As contas salvas vão para a camada quente, e as buscadas na camada fria são
+ * promovidas para a quente. Uma thread em segundo plano rebaixa para a camada
+ * fria as contas que ficaram um certo tempo sem ser salvas nem buscadas.
+ * Contas salvas em lotes grandes (como os snapshots da agência) que não estão
+ * na camada quente vão direto para a fria, para não ocupar a camada quente.
+ * Como uma conta pode ser promovida enquanto um lote grande a salva na camada
+ * fria, a promoção lê a conta de novo com a posição travada, e o lote, depois
+ * de salvo, atualiza as posições promovidas que ainda não foram salvas.
+ *
+ * As contas são percorridas em ordem de número quando a camada fria as
+ * percorre em ordem (como o banco de dados): as contas da camada quente são
+ * ordenadas e intercaladas com as da fria.
+ *
+ * Ao finalizar, todas as contas da camada quente são copiadas para a fria,
+ * que fica completa; a camada quente é mantida para a próxima execução.
+ *
+ * Cada posição do arquivo mapeado guarda o número (int, zero se a posição
+ * está livre) e o saldo (double) de uma conta. Se a camada quente for aberta
+ * com uma capacidade menor que a da execução anterior, as contas das posições
+ * que não cabem mais são rebaixadas para a camada fria antes de tudo (se isso
+ * não for possível, a persistência não é criada).
+ */
+public class PersistenciaEmCamadas implements Persistencia {
+    // nome do arquivo da camada quente
+    private final String NOME_ARQUIVO = "contas.quentes";
+    // bytes ocupados por uma conta no arquivo: número (int) e saldo (double)
+    private final int TAMANHO_POSICAO = 12;
+    // lotes a partir deste tamanho não ocupam a camada quente
+    private final int LOTE_GRANDE = 1000;
+    // quantidade de contas enviadas de cada vez para a camada fria
+    private final int LOTE_REBAIXAMENTO = 10000;
+
+    // persistência da camada fria
+    private final Persistencia fria;
+    // quantidade máxima de contas na camada quente
+    private final int capacidade;
+    // tempo, em milissegundos, sem acesso para que uma conta seja rebaixada
+    private final long idadeMaxima;
+    // arquivo da camada quente mapeado em memória
+    private final MappedByteBuffer mapa;
+    // posição de cada conta na camada quente
+    private final Map<Integer, Posicao> quentes;
+    // posições livres da camada quente (acessado apenas com ela travada)
+    private final Deque<Integer> posicoesLivres;
+    // impede que contas sejam rebaixadas enquanto as contas são percorridas
+    private final ReentrantReadWriteLock travaRebaixamento;
+    // thread que rebaixa as contas sem acesso
+    private final Thread threadRebaixamento;
+
+    /**
+     * Cria a persistência em camadas com o banco de dados como camada fria,
+     * até 1 milhão de contas na camada quente e rebaixamento após 1 minuto sem
+     * acesso.
+     */
+    public PersistenciaEmCamadas() {
+        this(new PersistenciaBancoDeDados(), 1 << 20, 60000);
+    }
+
+    /**
+     * Cria a persistência em camadas.
+     *
+     * @param fria        Persistência da camada fria (deve aceitar salvamento
+     *                    parcial).
+     * @param capacidade  Quantidade máxima de contas na camada quente.
+     * @param idadeMaxima Tempo, em milissegundos, sem acesso para que uma conta
+     *                    seja rebaixada para a camada fria.
+     */
+    public PersistenciaEmCamadas(Persistencia fria, int capacidade, long idadeMaxima) {
+        if (!fria.salvamentoParcial()) {
+            throw new IllegalArgumentException("A camada fria precisa aceitar salvamento parcial");
+        }
+        this.fria = fria;
+        this.capacidade = capacidade;
+        this.idadeMaxima = idadeMaxima;
+        quentes = new ConcurrentHashMap<>();
+        posicoesLivres = new ArrayDeque<>();
+        travaRebaixamento = new ReentrantReadWriteLock();
+
+        try (RandomAccessFile arquivo = new RandomAccessFile(NOME_ARQUIVO, "rw")) {
+            long tamanho = (long) capacidade * TAMANHO_POSICAO;
+            if (arquivo.length() > tamanho) {
+                rebaixarExcedentes(arquivo, tamanho);
+            }
+            mapa = arquivo.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, tamanho);
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao abrir o arquivo " + NOME_ARQUIVO, e);
+        }
+        // reconstrói o índice da camada quente a partir do arquivo (as posições
+        // livres são usadas da primeira para a última)
+        long agora = System.currentTimeMillis();
+        for (int indice = capacidade - 1; indice >= 0; indice--) {
+            int numero = mapa.getInt(indice * TAMANHO_POSICAO);
+            if (numero != 0) {
+                quentes.put(numero, new Posicao(indice, agora));
+            } else {
+                posicoesLivres.push(indice);
+            }
+        }
+
+        threadRebaixamento = new Thread(this::rebaixarPeriodicamente, "camadas-rebaixamento");
+        threadRebaixamento.setDaemon(true);
+        threadRebaixamento.start();
+    }
+
+    /*
+     * Salva na camada fria as contas das posições do arquivo a partir do
+     * tamanho passado (que não cabem na capacidade atual) e, depois de salvas,
+     * libera essas posições. Lança uma exceção se elas não puderem ser salvas,
+     * para que não sejam perdidas.
+     */
+    private void rebaixarExcedentes(RandomAccessFile arquivo, long tamanho) throws IOException {
+        MappedByteBuffer excedente = arquivo.getChannel().map(FileChannel.MapMode.READ_WRITE, tamanho,
+                arquivo.length() - tamanho);
+        int fim = excedente.limit() - excedente.limit() % TAMANHO_POSICAO;
+        List<Conta> lote = new ArrayList<>();
+        for (int deslocamento = 0; deslocamento < fim; deslocamento += TAMANHO_POSICAO) {
+            int numero = excedente.getInt(deslocamento);
+            if (numero != 0) {
+                lote.add(new Conta(numero, excedente.getDouble(deslocamento + 4)));
+            }
+        }
+        if (lote.isEmpty()) {
+            return;
+        }
+        if ((!fria.criada() && !fria.criarPersistencia()) || !fria.salvarContas(lote)) {
+            throw new RuntimeException("Erro ao rebaixar as " + lote.size() + " contas do arquivo " + NOME_ARQUIVO
+                    + " que não cabem na capacidade de " + capacidade + " contas");
+        }
+        for (int deslocamento = 0; deslocamento < fim; deslocamento += TAMANHO_POSICAO) {
+            excedente.putInt(deslocamento, 0);
+        }
+        excedente.force();
+        RegistroEventos.aviso("PersistenciaEmCamadas", lote.size() + " contas do arquivo " + NOME_ARQUIVO
+                + " que não cabem na capacidade de " + capacidade + " contas foram rebaixadas para a camada fria");
+    }
+
+    /**
+     * Realiza a configuração inicial da camada fria
+     */
+    @Override
+    public boolean criarPersistencia() {
+        return fria.criarPersistencia();
+    }
+
+    /**
+     * Retorna se a camada fria já foi criada
+     */
+    @Override
+    public boolean criada() {
+        return fria.criada();
+    }
+
+    /**
+     * Carrega as contas das duas camadas.
+     * Retorna uma coleção vazia se houver algum problema para carregar os dados
+     */
+    @Override
+    public List<Conta> carregarContas() {
+        List<Conta> contas = new ArrayList<>();
+        if (!percorrerContas(contas::add)) {
+            return new ArrayList<>();
+        }
+        return contas;
+    }
+
+    /**
+     * Percorre as contas das duas camadas, intercalando as da camada fria que
+     * não estão na quente com as da camada quente
+     */
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
+        return percorrerContas(Integer.MIN_VALUE, Integer.MAX_VALUE, consumidor);
+    }
+
+    /**
+     * Percorre as contas das duas camadas com número entre os valores
+     * passados: a consulta é repassada à camada fria, e as contas da camada
+     * quente nesse intervalo são intercaladas com as dela
+     */
+    @Override
+    public boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        if (numeroInicial > numeroFinal) {
+            return true;
+        }
+        travaRebaixamento.readLock().lock();
+        try {
+            // as contas promovidas durante o percurso já foram lidas da camada
+            // fria, então apenas as que já estavam na camada quente são lidas dela
+            NavigableMap<Integer, Posicao> jaQuentes = new TreeMap<>();
+            for (Map.Entry<Integer, Posicao> entrada : quentes.entrySet()) {
+                if (entrada.getKey() >= numeroInicial && entrada.getKey() <= numeroFinal) {
+                    jaQuentes.put(entrada.getKey(), entrada.getValue());
+                }
+            }
+            Intercalacao intercalacao = new Intercalacao(jaQuentes, consumidor);
+            boolean percorreu = fria.percorrerContas(numeroInicial, numeroFinal, conta -> {
+                if (!jaQuentes.containsKey(conta.getNumero())) {
+                    intercalacao.enviarQuentesAte(conta.getNumero());
+                    consumidor.accept(conta);
+                }
+            });
+            intercalacao.enviarQuentesAte(Integer.MAX_VALUE);
+            return percorreu;
+        } finally {
+            travaRebaixamento.readLock().unlock();
+        }
+    }
+
+    /**
+     * Salva as contas na camada quente (ou, se o lote for grande, salva na
+     * camada fria as que não estão na quente)
+     */
+    @Override
+    public boolean salvarContas(List<Conta> contas) {
+        boolean loteGrande = contas.size() >= LOTE_GRANDE;
+        List<Conta> paraFria = new ArrayList<>();
+        for (Conta conta : contas) {
+            if ((loteGrande && !quentes.containsKey(conta.getNumero())) || !gravarQuente(conta, true)) {
+                paraFria.add(conta);
+            }
+        }
+        if (paraFria.isEmpty()) {
+            return true;
+        }
+        if (!fria.salvarContas(paraFria)) {
+            return false;
+        }
+        corrigirPromovidas(paraFria);
+        return true;
+    }
+
+    /*
+     * Atualiza as contas salvas na camada fria que foram promovidas para a
+     * camada quente durante o salvamento, já que a promoção pode ter lido o
+     * saldo anterior. Uma posição que já foi salva depois da promoção tem um
+     * saldo mais novo e não é alterada.
+     */
+    private void corrigirPromovidas(List<Conta> salvasNaFria) {
+        for (Conta conta : salvasNaFria) {
+            Posicao posicao = quentes.get(conta.getNumero());
+            if (posicao == null) {
+                continue;
+            }
+            synchronized (posicao) {
+                if (!posicao.removida && posicao.promovida) {
+                    mapa.putDouble(posicao.indice * TAMANHO_POSICAO + 4, conta.getSaldo());
+                    posicao.versao++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Busca uma conta na camada quente e, se não estiver lá, na camada fria,
+     * promovendo-a para a camada quente
+     */
+    @Override
+    public Conta buscarConta(int numero) {
+        Posicao posicao = quentes.get(numero);
+        if (posicao != null) {
+            Conta conta = lerQuente(numero, posicao, true);
+            if (conta != null) {
+                return conta;
+            }
+        }
+        Conta conta = fria.buscarConta(numero);
+        if (conta != null && gravarQuente(conta, false)) {
+            // retorna o saldo que ficou na camada quente: o salvo nesse meio
+            // tempo ou o lido de novo da camada fria na promoção
+            Posicao promovida = quentes.get(numero);
+            Conta quente = promovida != null ? lerQuente(numero, promovida, false) : null;
+            if (quente != null) {
+                return quente;
+            }
+        }
+        return conta;
+    }
+
+    /**
+     * Retorna true, pois cada conta é salva separadamente em uma das camadas
+     */
+    @Override
+    public boolean salvamentoParcial() {
+        return true;
+    }
+
+    /**
+     * Retorna true, pois as contas salvas por uma operação normalmente vão
+     * para a camada quente, que é um arquivo mapeado em memória.
+     */
+    @Override
+    public boolean salvamentoPorOperacao() {
+        return true;
+    }
+
+    /**
+     * Encerra a thread de rebaixamento, copia as contas da camada quente para
+     * a fria e finaliza a camada fria
+     */
+    @Override
+    public boolean finalizar() {
+        threadRebaixamento.interrupt();
+        try {
+            threadRebaixamento.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        List<Conta> contas = new ArrayList<>();
+        for (Map.Entry<Integer, Posicao> entrada : quentes.entrySet()) {
+            Conta conta = lerQuente(entrada.getKey(), entrada.getValue(), false);
+            if (conta != null) {
+                contas.add(conta);
+            }
+        }
+        mapa.force();
+        boolean salvou = contas.isEmpty() || fria.salvarContas(contas);
+        return fria.finalizar() && salvou;
+    }
+
+    /*
+     * Grava uma conta na camada quente, ocupando uma posição livre se ela
+     * ainda não estiver lá. Se substituir for false (promoção de uma conta
+     * lida da camada fria), uma conta que já está na camada quente não é
+     * alterada, e uma conta que ocupa uma nova posição é lida de novo da
+     * camada fria com a posição travada: um lote grande pode ter salvo um
+     * saldo mais novo depois da primeira leitura e, se salvar depois disso,
+     * encontra a posição e a corrige (veja corrigirPromovidas). Retorna false
+     * se não há posição livre.
+     */
+    private boolean gravarQuente(Conta conta, boolean substituir) {
+        while (true) {
+            Posicao posicao = quentes.get(conta.getNumero());
+            boolean nova = false;
+            if (posicao == null) {
+                Integer livre;
+                synchronized (posicoesLivres) {
+                    livre = posicoesLivres.poll();
+                }
+                if (livre == null) {
+                    return false;
+                }
+                posicao = new Posicao(livre, System.currentTimeMillis());
+                Posicao existente = quentes.putIfAbsent(conta.getNumero(), posicao);
+                if (existente != null) {
+                    liberar(livre);
+                    posicao = existente;
+                } else {
+                    nova = true;
+                }
+            }
+            synchronized (posicao) {
+                // se a posição foi liberada por um rebaixamento, tenta de novo
+                if (!posicao.removida) {
+                    if (nova || substituir) {
+                        double saldo = conta.getSaldo();
+                        if (!substituir) {
+                            Conta atual = fria.buscarConta(conta.getNumero());
+                            if (atual != null) {
+                                saldo = atual.getSaldo();
+                            }
+                        }
+                        posicao.promovida = !substituir;
+                        int deslocamento = posicao.indice * TAMANHO_POSICAO;
+                        mapa.putDouble(deslocamento + 4, saldo);
+                        mapa.putInt(deslocamento, conta.getNumero());
+                    }
+                    posicao.ultimoAcesso = System.currentTimeMillis();
+                    posicao.versao++;
+                    return true;
+                }
+            }
+        }
+    }
+
+    /*
+     * Lê uma conta da camada quente, atualizando o seu último acesso se for um
+     * acesso à conta (e não apenas a leitura de todas as contas). Retorna null
+     * se ela foi rebaixada nesse meio tempo.
+     */
+    private Conta lerQuente(int numero, Posicao posicao, boolean acesso) {
+        synchronized (posicao) {
+            if (posicao.removida) {
+                return null;
+            }
+            if (acesso) {
+                posicao.ultimoAcesso = System.currentTimeMillis();
+                posicao.versao++;
+            }
+            return new Conta(numero, mapa.getDouble(posicao.indice * TAMANHO_POSICAO + 4));
+        }
+    }
+
+    /*
+     * Devolve uma posição para as posições livres
+     */
+    private void liberar(int indice) {
+        synchronized (posicoesLivres) {
+            posicoesLivres.push(indice);
+        }
+    }
+
+    /*
+     * Método executado pela thread de rebaixamento: periodicamente, rebaixa
+     * as contas sem acesso há mais tempo que a idade máxima
+     */
+    private void rebaixarPeriodicamente() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(Math.max(100, idadeMaxima / 2));
+            } catch (InterruptedException e) {
+                return;
+            }
+            rebaixarContasSemAcesso();
+        }
+    }
+
+    /*
+     * Salva na camada fria as contas sem acesso há mais tempo que a idade
+     * máxima e, se elas não foram acessadas durante o salvamento, libera as
+     * suas posições na camada quente
+     */
+    private void rebaixarContasSemAcesso() {
+        long limite = System.currentTimeMillis() - idadeMaxima;
+        List<Conta> lote = new ArrayList<>();
+        List<Posicao> posicoes = new ArrayList<>();
+        List<Long> versoes = new ArrayList<>();
+        for (Map.Entry<Integer, Posicao> entrada : quentes.entrySet()) {
+            Posicao posicao = entrada.getValue();
+            synchronized (posicao) {
+                if (posicao.removida || posicao.ultimoAcesso > limite) {
+                    continue;
+                }
+                lote.add(new Conta(entrada.getKey(), mapa.getDouble(posicao.indice * TAMANHO_POSICAO + 4)));
+                posicoes.add(posicao);
+                versoes.add(posicao.versao);
+            }
+            if (lote.size() == LOTE_REBAIXAMENTO) {
+                rebaixar(lote, posicoes, versoes);
+                lote.clear();
+                posicoes.clear();
+                versoes.clear();
+            }
+        }
+        if (!lote.isEmpty()) {
+            rebaixar(lote, posicoes, versoes);
+        }
+    }
+
+    /*
+     * Salva um lote de contas na camada fria e as remove da camada quente
+     * (exceto as que foram salvas ou acessadas depois de entrarem no lote, o
+     * que é percebido pela versão da posição)
+     */
+    private void rebaixar(List<Conta> lote, List<Posicao> posicoes, List<Long> versoes) {
+        if (!fria.salvarContas(lote)) {
+            RegistroEventos.erro("PersistenciaEmCamadas",
+                    "Houve um erro ao tentar rebaixar contas para a camada fria", null);
+            return;
+        }
+        travaRebaixamento.writeLock().lock();
+        try {
+            for (int i = 0; i < lote.size(); i++) {
+                Posicao posicao = posicoes.get(i);
+                synchronized (posicao) {
+                    if (posicao.versao != versoes.get(i)) {
+                        continue;
+                    }
+                    posicao.removida = true;
+                    quentes.remove(lote.get(i).getNumero(), posicao);
+                    mapa.putInt(posicao.indice * TAMANHO_POSICAO, 0);
+                }
+                liberar(posicao.indice);
+            }
+        } finally {
+            travaRebaixamento.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Intercala as contas da camada quente, em ordem de número, com as da
+     * camada fria enviadas ao consumidor
+     */
+    private final class Intercalacao {
+        private final Iterator<Map.Entry<Integer, Posicao>> pendentes;
+        private final Consumer<Conta> consumidor;
+        private Map.Entry<Integer, Posicao> proxima;
+
+        Intercalacao(NavigableMap<Integer, Posicao> quentesOrdenadas, Consumer<Conta> consumidor) {
+            pendentes = quentesOrdenadas.entrySet().iterator();
+            this.consumidor = consumidor;
+            proxima = pendentes.hasNext() ? pendentes.next() : null;
+        }
+
+        /*
+         * Envia as contas da camada quente com número menor que o passado
+         * (ou todas as restantes, se for Integer.MAX_VALUE)
+         */
+        void enviarQuentesAte(int numero) {
+            while (proxima != null && (proxima.getKey() < numero || numero == Integer.MAX_VALUE)) {
+                Conta conta = lerQuente(proxima.getKey(), proxima.getValue(), false);
+                if (conta != null) {
+                    consumidor.accept(conta);
+                }
+                proxima = pendentes.hasNext() ? pendentes.next() : null;
+            }
+        }
+    }
+
+    /*
+     * Posição de uma conta na camada quente (os campos são acessados apenas
+     * com a posição travada). A versão é incrementada a cada salvamento ou
+     * acesso, para que o rebaixamento perceba qualquer alteração feita
+     * durante ele, mesmo no mesmo milissegundo. Uma posição fica marcada como
+     * promovida desde a promoção até a conta ser salva.
+     */
+    private static final class Posicao {
+        final int indice;
+        long ultimoAcesso;
+        long versao;
+        boolean removida;
+        boolean promovida;
+
+        Posicao(int indice, long ultimoAcesso) {
+            this.indice = indice;
+            this.ultimoAcesso = ultimoAcesso;
+        }
+    }
+}
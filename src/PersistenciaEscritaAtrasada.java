@@ -0,0 +1,436 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Implementação da interface Persistencia que "decora" uma outra persistência
+ * (arquivo texto, arquivo binário, banco de dados, etc.) fazendo a escrita
+ * atrasada (write-behind) das contas.
+ *
+ * Ao salvar contas, elas são apenas guardadas em uma fila de contas pendentes
+ * e o método retorna imediatamente. Uma thread em segundo plano envia as
+ * contas pendentes para a persistência decorada a cada intervalo de tempo.
+ * Se uma conta é salva várias vezes antes de ser enviada, só o último saldo é
+ * enviado.
+ *
+ * A fila tem um limite de contas: quando ele é atingido, quem tenta salvar
+ * espera até que a thread em segundo plano esvazie a fila. Ao finalizar a
+ * persistência, as contas pendentes são todas enviadas.
+ *
+ * As consultas são repassadas para a persistência decorada e os resultados
+ * são combinados com as contas que ainda não foram enviadas.
+ */
+public class PersistenciaEscritaAtrasada implements Persistencia {
+    // espera máxima, em milissegundos, entre as tentativas de envio depois de
+    // falhas seguidas
+    private final long ESPERA_MAXIMA = 30_000;
+
+    // persistência que realmente guarda as contas
+    private final Persistencia persistencia;
+    // intervalo, em milissegundos, entre os envios das contas pendentes
+    private final long intervalo;
+    // quantidade máxima de contas pendentes
+    private final int limitePendentes;
+    // contas que ainda não foram enviadas para a persistência decorada
+    // (acessado apenas com o objeto travado)
+    private Map<Integer, Conta> pendentes;
+    // contas que estão sendo enviadas no momento (acessado apenas com o
+    // objeto travado)
+    private Map<Integer, Conta> emEnvio;
+    // envia os lotes para a persistência decorada, mesmo que ela precise
+    // receber todas as contas a cada salvamento (acessado apenas pela thread
+    // que envia as contas)
+    private final ImagemContas imagem;
+    // thread que envia as contas pendentes
+    private Thread threadEnvio;
+    // indica se a persistência foi finalizada
+    private boolean finalizada;
+
+    /**
+     * Cria a persistência com escrita atrasada.
+     *
+     * @param persistencia    Persistência que realmente guardará as contas.
+     * @param intervalo       Intervalo, em milissegundos, entre os envios.
+     * @param limitePendentes Quantidade máxima de contas pendentes.
+     * @throws IllegalArgumentException Se o intervalo ou o limite não forem
+     *                                  positivos.
+     */
+    public PersistenciaEscritaAtrasada(Persistencia persistencia, long intervalo, int limitePendentes) {
+        if (intervalo <= 0) {
+            throw new IllegalArgumentException("O intervalo entre os envios precisa ser positivo");
+        }
+        if (limitePendentes <= 0) {
+            throw new IllegalArgumentException("O limite de contas pendentes precisa ser positivo");
+        }
+        this.persistencia = persistencia;
+        this.intervalo = intervalo;
+        this.limitePendentes = limitePendentes;
+        pendentes = new LinkedHashMap<>();
+        emEnvio = new LinkedHashMap<>();
+        imagem = new ImagemContas(persistencia);
+        finalizada = false;
+
+        threadEnvio = new Thread(this::enviarPeriodicamente, "escrita-atrasada");
+        threadEnvio.setDaemon(true);
+        threadEnvio.start();
+    }
+
+    /**
+     * Realiza a configuração inicial da persistência decorada
+     */
+    @Override
+    public boolean criarPersistencia() {
+        return persistencia.criarPersistencia();
+    }
+
+    /**
+     * Retorna se a persistência decorada já foi criada
+     */
+    @Override
+    public boolean criada() {
+        return persistencia.criada();
+    }
+
+    /**
+     * Carrega as contas persistidas, incluindo as que ainda estão pendentes.
+     * Retorna uma coleção vazia se houver algum problema para carregar os dados
+     */
+    @Override
+    public List<Conta> carregarContas() {
+        // as contas que ainda não chegaram na persistência decorada são
+        // copiadas antes de carregá-la, pois podem ser enviadas nesse meio tempo
+        Map<Integer, Conta> naoEnviadas = naoEnviadas();
+
+        Map<Integer, Conta> contas = new LinkedHashMap<>();
+        for (Conta conta : persistencia.carregarContas()) {
+            contas.put(conta.getNumero(), conta);
+        }
+        contas.putAll(naoEnviadas);
+        return new ArrayList<>(contas.values());
+    }
+
+    /**
+     * Percorre as contas da persistência decorada, trocando as que ainda não
+     * foram enviadas pelas versões pendentes
+     */
+    @Override
+    public boolean percorrerContas(Consumer<Conta> consumidor) {
+        return percorrerContas(Integer.MIN_VALUE, Integer.MAX_VALUE, consumidor);
+    }
+
+    /**
+     * Percorre as contas da persistência decorada com número entre os valores
+     * passados, trocando as que ainda não foram enviadas pelas versões
+     * pendentes
+     */
+    @Override
+    public boolean percorrerContas(int numeroInicial, int numeroFinal, Consumer<Conta> consumidor) {
+        Map<Integer, Conta> naoEnviadas = naoEnviadas();
+        boolean percorreu = persistencia.percorrerContas(numeroInicial, numeroFinal, conta -> {
+            if (!naoEnviadas.containsKey(conta.getNumero())) {
+                consumidor.accept(conta);
+            }
+        });
+        if (!percorreu) {
+            return false;
+        }
+        for (Conta conta : naoEnviadas.values()) {
+            if (conta.getNumero() >= numeroInicial && conta.getNumero() <= numeroFinal) {
+                consumidor.accept(conta);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Carrega uma página da persistência decorada e a combina com as contas
+     * que ainda não foram enviadas
+     */
+    @Override
+    public List<Conta> carregarPagina(int aPartirDoNumero, int limite) {
+        Map<Integer, Conta> naoEnviadas = naoEnviadas();
+        List<Conta> pagina = persistencia.carregarPagina(aPartirDoNumero, limite);
+        if (naoEnviadas.isEmpty()) {
+            return pagina;
+        }
+        // as contas depois da última da página não entram nela, mesmo que
+        // estejam pendentes, porque pode haver contas persistidas antes delas
+        int ultimoNumero = pagina.isEmpty() || pagina.size() < limite ? Integer.MAX_VALUE : pagina.get(pagina.size() - 1).getNumero();
+        List<Conta> contas = substituirNaoEnviadas(pagina, naoEnviadas, conta -> conta.getNumero() > aPartirDoNumero
+                && conta.getNumero() <= ultimoNumero);
+        contas.sort(Comparator.comparingInt(Conta::getNumero));
+        return contas.size() > limite ? new ArrayList<>(contas.subList(0, limite)) : contas;
+    }
+
+    /**
+     * Conta as contas na persistência decorada (se ainda houver contas não
+     * enviadas, percorre as contas, pois não dá para saber quais delas são
+     * novas)
+     */
+    @Override
+    public long contarContas() {
+        synchronized (this) {
+            if (pendentes.isEmpty() && emEnvio.isEmpty()) {
+                return persistencia.contarContas();
+            }
+        }
+        return Persistencia.super.contarContas();
+    }
+
+    /**
+     * Soma os saldos na persistência decorada (se ainda houver contas não
+     * enviadas, percorre as contas, pois não dá para saber quais saldos elas
+     * substituem)
+     */
+    @Override
+    public double somarSaldos() {
+        synchronized (this) {
+            if (pendentes.isEmpty() && emEnvio.isEmpty()) {
+                return persistencia.somarSaldos();
+            }
+        }
+        return Persistencia.super.somarSaldos();
+    }
+
+    /**
+     * Busca os maiores saldos na persistência decorada e os combina com as
+     * contas que ainda não foram enviadas
+     */
+    @Override
+    public List<Conta> maioresSaldos(int quantidade) {
+        Map<Integer, Conta> naoEnviadas = naoEnviadas();
+        if (naoEnviadas.isEmpty()) {
+            return persistencia.maioresSaldos(quantidade);
+        }
+        // cada conta não enviada pode tirar uma conta persistida da lista,
+        // então são buscadas contas a mais
+        List<Conta> maiores = persistencia.maioresSaldos((int) Math.min((long) quantidade + naoEnviadas.size(),
+                Integer.MAX_VALUE));
+        List<Conta> contas = substituirNaoEnviadas(maiores, naoEnviadas, conta -> true);
+        contas.sort(Collections.reverseOrder(Comparator.comparingDouble(Conta::getSaldo)
+                .thenComparingInt(Conta::getNumero)));
+        return contas.size() > quantidade ? new ArrayList<>(contas.subList(0, Math.max(quantidade, 0))) : contas;
+    }
+
+    /**
+     * Busca as contas com saldo entre os valores passados na persistência
+     * decorada e as combina com as contas que ainda não foram enviadas
+     */
+    @Override
+    public List<Conta> contasComSaldoEntre(double minimo, double maximo) {
+        Map<Integer, Conta> naoEnviadas = naoEnviadas();
+        List<Conta> encontradas = persistencia.contasComSaldoEntre(minimo, maximo);
+        if (naoEnviadas.isEmpty()) {
+            return encontradas;
+        }
+        List<Conta> contas = substituirNaoEnviadas(encontradas, naoEnviadas,
+                conta -> conta.getSaldo() >= minimo && conta.getSaldo() <= maximo);
+        contas.sort(Comparator.comparingDouble(Conta::getSaldo).thenComparingInt(Conta::getNumero));
+        return contas;
+    }
+
+    /**
+     * Busca uma conta pelo seu número, considerando primeiro as contas que
+     * ainda não foram enviadas para a persistência decorada.
+     * Retorna null se a conta não existir ou se houver algum problema.
+     */
+    @Override
+    public Conta buscarConta(int numero) {
+        synchronized (this) {
+            Conta conta = pendentes.get(numero);
+            if (conta == null) {
+                conta = emEnvio.get(numero);
+            }
+            if (conta != null) {
+                return new Conta(conta.getNumero(), conta.getSaldo());
+            }
+        }
+        return persistencia.buscarConta(numero);
+    }
+
+    /**
+     * Guarda as contas para serem enviadas depois e retorna imediatamente.
+     * Se a fila de contas pendentes estiver cheia, espera até que ela seja
+     * esvaziada.
+     * Retorna false apenas se a persistência já tiver sido finalizada.
+     */
+    @Override
+    public synchronized boolean salvarContas(List<Conta> contas) {
+        if (finalizada) {
+            return false;
+        }
+        for (Conta conta : contas) {
+            // se a fila está cheia (e a conta não está nela), avisa a thread
+            // de envio e espera a fila ser esvaziada
+            while (pendentes.size() >= limitePendentes && !pendentes.containsKey(conta.getNumero())) {
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (finalizada) {
+                    return false;
+                }
+            }
+            pendentes.put(conta.getNumero(), new Conta(conta.getNumero(), conta.getSaldo()));
+        }
+        return true;
+    }
+
+    /**
+     * Guarda as contas fornecidas pelo iterador para serem enviadas depois.
+     * Como a fila tem um limite, as contas não precisam estar todas em memória.
+     * Retorna false apenas se a persistência já tiver sido finalizada.
+     */
+    @Override
+    public boolean salvarContas(Iterator<Conta> contas) {
+        while (contas.hasNext()) {
+            if (!salvarContas(List.of(contas.next()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retorna true, pois as contas recebidas são combinadas com as que já
+     * foram salvas antes de serem enviadas para a persistência decorada.
+     */
+    @Override
+    public boolean salvamentoParcial() {
+        return true;
+    }
+
+    /**
+     * Retorna true, pois salvar contas apenas as coloca na fila de contas
+     * pendentes.
+     */
+    @Override
+    public boolean salvamentoPorOperacao() {
+        return true;
+    }
+
+    /**
+     * Envia todas as contas pendentes, encerra a thread de envio e finaliza a
+     * persistência decorada.
+     * Retorna true se todas as contas foram salvas corretamente e false se
+     * houver algum problema.
+     */
+    @Override
+    public boolean finalizar() {
+        synchronized (this) {
+            finalizada = true;
+            notifyAll();
+        }
+        try {
+            threadEnvio.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean salvou;
+        synchronized (this) {
+            salvou = pendentes.isEmpty();
+        }
+        return persistencia.finalizar() && salvou;
+    }
+
+    /*
+     * Retorna cópias das contas que ainda não chegaram na persistência
+     * decorada (as pendentes substituem as que estão sendo enviadas)
+     */
+    private synchronized Map<Integer, Conta> naoEnviadas() {
+        Map<Integer, Conta> contas = new LinkedHashMap<>();
+        for (Conta conta : emEnvio.values()) {
+            contas.put(conta.getNumero(), new Conta(conta.getNumero(), conta.getSaldo()));
+        }
+        for (Conta conta : pendentes.values()) {
+            contas.put(conta.getNumero(), new Conta(conta.getNumero(), conta.getSaldo()));
+        }
+        return contas;
+    }
+
+    /*
+     * Tira de um resultado da persistência decorada as contas que ainda não
+     * foram enviadas e acrescenta as versões pendentes que atendem ao filtro
+     */
+    private static List<Conta> substituirNaoEnviadas(List<Conta> resultado, Map<Integer, Conta> naoEnviadas,
+            Predicate<Conta> filtro) {
+        List<Conta> contas = new ArrayList<>();
+        for (Conta conta : resultado) {
+            if (!naoEnviadas.containsKey(conta.getNumero())) {
+                contas.add(conta);
+            }
+        }
+        for (Conta conta : naoEnviadas.values()) {
+            if (filtro.test(conta)) {
+                contas.add(conta);
+            }
+        }
+        return contas;
+    }
+
+    /*
+     * Método executado pela thread de envio: a cada intervalo (ou quando a
+     * fila enche) envia as contas pendentes para a persistência decorada
+     */
+    private void enviarPeriodicamente() {
+        boolean continuar = true;
+        int falhasSeguidas = 0;
+        while (continuar) {
+            Map<Integer, Conta> lote;
+            synchronized (this) {
+                try {
+                    if (falhasSeguidas > 0) {
+                        // depois de uma falha, espera um tempo que dobra a cada
+                        // nova falha, mesmo com a fila cheia, para não tentar
+                        // de novo sem parar enquanto a persistência decorada
+                        // estiver com problemas
+                        long prazo = System.currentTimeMillis()
+                                + Math.min(Math.max(intervalo, 1) << Math.min(falhasSeguidas, 16), ESPERA_MAXIMA);
+                        long restante = prazo - System.currentTimeMillis();
+                        while (!finalizada && restante > 0) {
+                            wait(restante);
+                            restante = prazo - System.currentTimeMillis();
+                        }
+                    } else if (!finalizada && pendentes.size() < limitePendentes) {
+                        wait(intervalo);
+                    }
+                } catch (InterruptedException e) {
+                    finalizada = true;
+                }
+                continuar = !finalizada;
+                lote = pendentes;
+                emEnvio = lote;
+                pendentes = new LinkedHashMap<>();
+                // acorda quem estava esperando a fila esvaziar
+                notifyAll();
+            }
+
+            boolean enviou = lote.isEmpty() || imagem.salvar(lote.values());
+            falhasSeguidas = enviou ? 0 : falhasSeguidas + 1;
+            synchronized (this) {
+                emEnvio = new LinkedHashMap<>();
+                if (!enviou) {
+                    // devolve para a fila as contas que não foram salvas (a menos
+                    // que já tenham sido salvas de novo) para tentar no próximo envio
+                    for (Conta conta : lote.values()) {
+                        pendentes.putIfAbsent(conta.getNumero(), conta);
+                    }
+                }
+            }
+            if (!enviou && !continuar) {
+                RegistroEventos.erro("PersistenciaEscritaAtrasada",
+                        "Houve um erro ao tentar salvar as contas pendentes", null);
+            }
+        }
+    }
+}
@@ -0,0 +1,465 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro de eventos (auditoria) do sistema: as operações realizadas nas
+ * contas e os avisos e erros da agência e das persistências.
+ *
+ * Registrar um evento apenas o coloca em um buffer circular de tamanho fixo,
+ * sem travas (cada posição tem um número de sequência que indica se ela está
+ * livre ou preenchida), e retorna imediatamente. Uma thread em segundo plano
+ * retira os eventos do buffer e os grava em um arquivo, um evento por linha
+ * no formato JSON. Quando o arquivo passa do tamanho máximo, ele é renomeado
+ * (eventos.log vira eventos.log.1, que vira eventos.log.2, etc.) e um novo
+ * arquivo é iniciado.
+ *
+ * Se os eventos chegam mais rápido do que podem ser gravados e o buffer
+ * enche, os novos eventos são descartados, em vez de fazer as operações
+ * esperarem; a quantidade descartada é contada e também registrada no
+ * arquivo. Os avisos e erros também são exibidos na tela, pela thread em
+ * segundo plano (ou na hora, por quem os registrou, se forem descartados).
+ *
+ * Enquanto o registro não é iniciado, ou se o arquivo não puder mais ser
+ * gravado, as operações não são registradas e os avisos e erros são apenas
+ * exibidos na tela, como antes.
+ */
+public class RegistroEventos {
+    // quantidade de posições do buffer (potência de 2)
+    private static final int TAMANHO_BUFFER = 1 << 16;
+    // quantidade de arquivos antigos mantidos ao trocar de arquivo
+    private static final int ARQUIVOS_ANTIGOS = 5;
+    // tempo de espera, em nanossegundos, da thread de gravação quando o
+    // buffer está vazio
+    private static final long ESPERA_BUFFER_VAZIO = 1_000_000;
+
+    // registro iniciado (null enquanto não foi iniciado)
+    private static volatile RegistroEventos ativo;
+
+    /**
+     * Tipos de evento.
+     */
+    public enum Tipo {
+        CONTA_CRIADA, DEPOSITO, SAQUE, TRANSFERENCIA, SALDO_INSUFICIENTE, FIM_DE_MES, AVISO, ERRO, DESCARTADOS
+    }
+
+    // eventos do buffer (reaproveitados) e números de sequência de cada
+    // posição: igual à posição de escrita se ela está livre e à posição mais
+    // um se ela está preenchida
+    private final Evento[] eventos;
+    private final AtomicLongArray sequencias;
+    // próxima posição de escrita (disputada pelas threads que registram)
+    private final AtomicLong proximaEscrita;
+    // próxima posição de leitura (usada apenas pela thread de gravação)
+    private long proximaLeitura;
+    // quantidade de eventos registrados e descartados
+    private final LongAdder registrados;
+    private final LongAdder descartados;
+
+    // arquivo onde os eventos são gravados e seu tamanho máximo
+    private final String nomeArquivo;
+    private final long tamanhoMaximo;
+    // thread que grava os eventos
+    private final Thread threadGravacao;
+    // indica se o registro foi finalizado
+    private volatile boolean finalizado;
+    // indica que houve um erro ao gravar o arquivo e os eventos não são mais
+    // gravados
+    private volatile boolean falhou;
+
+    /*
+     * Cria o registro e inicia a thread de gravação
+     */
+    private RegistroEventos(String nomeArquivo, long tamanhoMaximo) {
+        this.nomeArquivo = nomeArquivo;
+        this.tamanhoMaximo = tamanhoMaximo;
+        eventos = new Evento[TAMANHO_BUFFER];
+        sequencias = new AtomicLongArray(TAMANHO_BUFFER);
+        for (int i = 0; i < TAMANHO_BUFFER; i++) {
+            eventos[i] = new Evento();
+            sequencias.set(i, i);
+        }
+        proximaEscrita = new AtomicLong();
+        registrados = new LongAdder();
+        descartados = new LongAdder();
+
+        threadGravacao = new Thread(this::gravarEventos, "registro-eventos");
+        threadGravacao.setDaemon(true);
+        threadGravacao.start();
+    }
+
+    /**
+     * Inicia o registro de eventos (se ele ainda não foi iniciado).
+     *
+     * @param nomeArquivo   Arquivo onde os eventos serão gravados.
+     * @param tamanhoMaximo Tamanho, em bytes, a partir do qual o arquivo é
+     *                      trocado por um novo.
+     */
+    public static synchronized void iniciar(String nomeArquivo, long tamanhoMaximo) {
+        if (ativo == null) {
+            ativo = new RegistroEventos(nomeArquivo, tamanhoMaximo);
+        }
+    }
+
+    /**
+     * Finaliza o registro, esperando os eventos do buffer serem gravados.
+     * Depois disso, os eventos voltam a ser tratados como se o registro não
+     * tivesse sido iniciado.
+     *
+     * Uma thread que estava registrando um evento no momento da finalização
+     * pode colocá-lo no buffer depois de a gravação terminar; esses eventos
+     * não são gravados, mas o buffer é conferido mais uma vez depois da
+     * gravação e os avisos e erros que estiverem nele são exibidos na tela.
+     */
+    public static synchronized void finalizar() {
+        RegistroEventos registro = ativo;
+        if (registro == null) {
+            return;
+        }
+        ativo = null;
+        registro.finalizado = true;
+        LockSupport.unpark(registro.threadGravacao);
+        try {
+            registro.threadGravacao.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        registro.esvaziarNaTela();
+    }
+
+    /**
+     * Registra uma operação em uma conta (não faz nada se o registro não foi
+     * iniciado).
+     *
+     * @param tipo         Tipo da operação.
+     * @param conta        Número da conta.
+     * @param contaDestino Número da conta de destino (zero se não houver).
+     * @param valor        Valor da operação.
+     */
+    public static void operacao(Tipo tipo, int conta, int contaDestino, double valor) {
+        RegistroEventos registro = gravando();
+        if (registro != null) {
+            registro.registrar(tipo, conta, contaDestino, valor, null, null, null);
+        }
+    }
+
+    /**
+     * Registra um aviso.
+     *
+     * @param origem   Classe que gerou o aviso.
+     * @param mensagem Mensagem do aviso.
+     */
+    public static void aviso(String origem, String mensagem) {
+        RegistroEventos registro = gravando();
+        if (registro == null) {
+            exibir(mensagem, null);
+        } else {
+            registro.registrar(Tipo.AVISO, 0, 0, 0, origem, mensagem, null);
+        }
+    }
+
+    /**
+     * Registra um erro.
+     *
+     * @param origem   Classe onde o erro aconteceu.
+     * @param mensagem Descrição do que estava sendo feito.
+     * @param causa    Exceção que causou o erro (pode ser null).
+     */
+    public static void erro(String origem, String mensagem, Throwable causa) {
+        RegistroEventos registro = gravando();
+        if (registro == null) {
+            exibir(mensagem, causa);
+        } else {
+            registro.registrar(Tipo.ERRO, 0, 0, 0, origem, mensagem, causa);
+        }
+    }
+
+    /**
+     * Retorna a quantidade de eventos descartados por falta de espaço no
+     * buffer (zero se o registro não foi iniciado).
+     *
+     * @return Quantidade de eventos descartados.
+     */
+    public static long getDescartados() {
+        RegistroEventos registro = ativo;
+        return registro == null ? 0 : registro.descartados.sum();
+    }
+
+    /**
+     * Retorna a quantidade de eventos colocados no buffer (zero se o registro
+     * não foi iniciado).
+     *
+     * @return Quantidade de eventos registrados.
+     */
+    public static long getRegistrados() {
+        RegistroEventos registro = ativo;
+        return registro == null ? 0 : registro.registrados.sum();
+    }
+
+    /*
+     * Retorna o registro ativo, se ele ainda está gravando o arquivo (null
+     * caso contrário)
+     */
+    private static RegistroEventos gravando() {
+        RegistroEventos registro = ativo;
+        return registro != null && !registro.falhou ? registro : null;
+    }
+
+    /*
+     * Coloca um evento no buffer, ou o descarta se o buffer estiver cheio (os
+     * avisos e erros descartados são exibidos na tela na hora)
+     */
+    private void registrar(Tipo tipo, int conta, int contaDestino, double valor, String origem, String mensagem,
+            Throwable causa) {
+        long posicao = proximaEscrita.get();
+        while (true) {
+            int indice = (int) (posicao & (TAMANHO_BUFFER - 1));
+            long diferenca = sequencias.get(indice) - posicao;
+            if (diferenca == 0) {
+                // a posição está livre: tenta reservá-la
+                if (proximaEscrita.compareAndSet(posicao, posicao + 1)) {
+                    Evento evento = eventos[indice];
+                    evento.instante = System.currentTimeMillis();
+                    evento.tipo = tipo;
+                    evento.conta = conta;
+                    evento.contaDestino = contaDestino;
+                    evento.valor = valor;
+                    evento.origem = origem;
+                    evento.mensagem = mensagem;
+                    evento.causa = causa;
+                    // publica o evento para a thread de gravação
+                    sequencias.set(indice, posicao + 1);
+                    registrados.increment();
+                    return;
+                }
+                posicao = proximaEscrita.get();
+            } else if (diferenca < 0) {
+                // a posição ainda não foi lida: o buffer está cheio
+                descartados.increment();
+                if (tipo == Tipo.AVISO || tipo == Tipo.ERRO) {
+                    exibir(mensagem, causa);
+                }
+                return;
+            } else {
+                // outra thread reservou a posição antes
+                posicao = proximaEscrita.get();
+            }
+        }
+    }
+
+    /*
+     * Retira os eventos do buffer e os grava no arquivo (executado pela thread
+     * de gravação até o registro ser finalizado e o buffer esvaziado)
+     */
+    private void gravarEventos() {
+        StringBuilder linha = new StringBuilder(256);
+        long descartadosGravados = 0;
+        OutputStream saida = null;
+        long tamanhoArquivo = 0;
+        try {
+            saida = new BufferedOutputStream(new FileOutputStream(nomeArquivo, true), 1 << 16);
+            tamanhoArquivo = new File(nomeArquivo).length();
+            while (true) {
+                int indice = (int) (proximaLeitura & (TAMANHO_BUFFER - 1));
+                if (sequencias.get(indice) != proximaLeitura + 1) {
+                    // buffer vazio: registra os descartes, grava o que está
+                    // pendente e espera novos eventos
+                    long descartadosAgora = descartados.sum();
+                    if (descartadosAgora > descartadosGravados) {
+                        Evento aviso = new Evento();
+                        aviso.instante = System.currentTimeMillis();
+                        aviso.tipo = Tipo.DESCARTADOS;
+                        aviso.valor = descartadosAgora - descartadosGravados;
+                        descartadosGravados = descartadosAgora;
+                        tamanhoArquivo += escrever(saida, aviso, linha);
+                    }
+                    saida.flush();
+                    if (finalizado) {
+                        break;
+                    }
+                    LockSupport.parkNanos(ESPERA_BUFFER_VAZIO);
+                    continue;
+                }
+
+                Evento evento = eventos[indice];
+                if (evento.tipo == Tipo.AVISO || evento.tipo == Tipo.ERRO) {
+                    exibir(evento.mensagem, evento.causa);
+                }
+                tamanhoArquivo += escrever(saida, evento, linha);
+                liberar(indice, evento);
+
+                if (tamanhoArquivo >= tamanhoMaximo) {
+                    saida.close();
+                    // se o arquivo não pôde ser renomeado, os eventos
+                    // continuam sendo acrescentados a ele
+                    trocarArquivo();
+                    saida = new BufferedOutputStream(new FileOutputStream(nomeArquivo, true), 1 << 16);
+                    tamanhoArquivo = 0;
+                }
+            }
+        } catch (IOException e) {
+            // sem o arquivo, os avisos e erros voltam a ser exibidos na tela
+            // por quem os registra e as operações deixam de ser registradas
+            falhou = true;
+            exibir("Houve um erro ao tentar gravar o arquivo " + nomeArquivo
+                    + "; os eventos não serão mais registrados", e);
+            esvaziarNaTela();
+        } finally {
+            if (saida != null) {
+                try {
+                    saida.close();
+                } catch (IOException e) {
+                    // não há mais nada a fazer
+                }
+            }
+        }
+    }
+
+    /*
+     * Escreve um evento como uma linha JSON, retornando a quantidade de bytes
+     * escritos
+     */
+    private static int escrever(OutputStream saida, Evento evento, StringBuilder linha) throws IOException {
+        linha.setLength(0);
+        linha.append("{\"instante\":").append(evento.instante);
+        linha.append(",\"tipo\":\"").append(evento.tipo).append('"');
+        switch (evento.tipo) {
+            case AVISO:
+            case ERRO:
+                linha.append(",\"origem\":");
+                escreverTexto(linha, evento.origem);
+                linha.append(",\"mensagem\":");
+                escreverTexto(linha, evento.mensagem);
+                if (evento.causa != null) {
+                    linha.append(",\"causa\":");
+                    escreverTexto(linha, evento.causa.toString());
+                }
+                break;
+            case DESCARTADOS:
+                linha.append(",\"quantidade\":").append((long) evento.valor);
+                break;
+            default:
+                linha.append(",\"conta\":").append(evento.conta);
+                if (evento.contaDestino != 0) {
+                    linha.append(",\"destino\":").append(evento.contaDestino);
+                }
+                if (evento.tipo != Tipo.CONTA_CRIADA) {
+                    linha.append(",\"valor\":").append(evento.valor);
+                }
+        }
+        linha.append("}\n");
+
+        byte[] bytes = linha.toString().getBytes(StandardCharsets.UTF_8);
+        saida.write(bytes);
+        return bytes.length;
+    }
+
+    /*
+     * Escreve um texto entre aspas, com os caracteres especiais do JSON
+     * escapados
+     */
+    private static void escreverTexto(StringBuilder linha, String texto) {
+        if (texto == null) {
+            linha.append("null");
+            return;
+        }
+        linha.append('"');
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c == '"' || c == '\\') {
+                linha.append('\\').append(c);
+            } else if (c == '\n') {
+                linha.append("\\n");
+            } else if (c < 0x20) {
+                linha.append(String.format("\\u%04x", (int) c));
+            } else {
+                linha.append(c);
+            }
+        }
+        linha.append('"');
+    }
+
+    /*
+     * Libera uma posição lida do buffer (e as referências do evento) para uma
+     * próxima volta do buffer (executado apenas por quem lê o buffer)
+     */
+    private void liberar(int indice, Evento evento) {
+        evento.origem = null;
+        evento.mensagem = null;
+        evento.causa = null;
+        sequencias.set(indice, proximaLeitura + TAMANHO_BUFFER);
+        proximaLeitura++;
+    }
+
+    /*
+     * Retira do buffer os eventos que restaram sem gravá-los, exibindo na
+     * tela os avisos e erros (usado quando o arquivo não pode mais ser gravado
+     * e depois de a thread de gravação terminar)
+     */
+    private void esvaziarNaTela() {
+        while (true) {
+            int indice = (int) (proximaLeitura & (TAMANHO_BUFFER - 1));
+            if (sequencias.get(indice) != proximaLeitura + 1) {
+                return;
+            }
+            Evento evento = eventos[indice];
+            if (evento.tipo == Tipo.AVISO || evento.tipo == Tipo.ERRO) {
+                exibir(evento.mensagem, evento.causa);
+            }
+            liberar(indice, evento);
+        }
+    }
+
+    /*
+     * Exibe um aviso ou erro na tela, como era feito antes do registro
+     */
+    private static void exibir(String mensagem, Throwable causa) {
+        System.out.println(mensagem);
+        if (causa != null) {
+            System.out.println("Detalhes do erro: " + causa);
+        }
+    }
+
+    /*
+     * Renomeia o arquivo atual e os antigos (o mais antigo é apagado). Se
+     * algum arquivo não puder ser renomeado, um aviso é exibido na tela (e,
+     * se for o arquivo atual, ele continua sendo usado).
+     */
+    private void trocarArquivo() {
+        File maisAntigo = new File(nomeArquivo + "." + ARQUIVOS_ANTIGOS);
+        if (maisAntigo.exists() && !maisAntigo.delete()) {
+            exibir("Não foi possível apagar o arquivo " + maisAntigo, null);
+        }
+        for (int i = ARQUIVOS_ANTIGOS - 1; i >= 0; i--) {
+            File arquivo = new File(i == 0 ? nomeArquivo : nomeArquivo + "." + i);
+            File novoNome = new File(nomeArquivo + "." + (i + 1));
+            if (arquivo.exists() && !arquivo.renameTo(novoNome)) {
+                exibir("Não foi possível renomear o arquivo " + arquivo + " para " + novoNome, null);
+            }
+        }
+    }
+
+    /*
+     * Posição do buffer (os campos são escritos por quem reservou a posição e
+     * lidos pela thread de gravação depois que o número de sequência a
+     * publica)
+     */
+    private static final class Evento {
+        long instante;
+        Tipo tipo;
+        int conta;
+        int contaDestino;
+        double valor;
+        String origem;
+        String mensagem;
+        Throwable causa;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Regra aplicada a todas as contas no processamento de fim de mês (por
+ * exemplo, rendimento de juros ou cobrança de tarifa).
+ *
+ * Uma regra apenas calcula o valor a ser creditado ou debitado de uma conta;
+ * quem aplica o valor é a agência (veja Agencia.processarMes). Como as regras
+ * são aplicadas em paralelo a várias contas, elas não devem alterar a conta
+ * nem depender de estado compartilhado.
+ */
+public interface RegraMensal {
+    /**
+     * Calcula o valor a ser aplicado na conta: positivo para crédito,
+     * negativo para débito e zero se a regra não se aplica à conta.
+     * Débitos maiores que o saldo da conta não são aplicados.
+     */
+    double calcular(Conta conta);
+
+    /**
+     * Cria uma regra de rendimento: credita nas contas com saldo positivo um
+     * percentual do saldo (arredondado para centavos).
+     *
+     * @param taxa Taxa de juros do mês (por exemplo, 0.005 para 0,5%).
+     */
+    static RegraMensal juros(double taxa) {
+        return conta -> conta.getSaldo() > 0 ? Math.round(conta.getSaldo() * taxa * 100) / 100.0 : 0.0;
+    }
+
+    /**
+     * Cria uma regra de tarifa: debita um valor fixo das contas. Contas sem
+     * saldo suficiente não são tarifadas (como qualquer débito maior que o
+     * saldo).
+     *
+     * @param valor Valor da tarifa.
+     */
+    static RegraMensal tarifa(double valor) {
+        return conta -> -valor;
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Gera relatórios diretamente a partir de uma persistência, sem carregar todas
+ * as contas em memória (e sem precisar criar uma Agencia).
+ *
+ * As contas são lidas aos poucos (percorrerContas) e os totais são pedidos
+ * à própria persistência, que pode calculá-los de forma eficiente (no banco
+ * de dados, por exemplo, eles são calculados pelo SQL).
+ */
+public class RelatorioPersistencia {
+    /**
+     * Imprime um relatório com os dados de todas as contas persistidas, no
+     * mesmo formato do relatório da Agencia.
+     *
+     * @param nomeAgencia  Nome da agência (usado no título).
+     * @param persistencia Persistência de onde as contas são lidas.
+     * @param saida        Onde o relatório será impresso.
+     * @return true se todas as contas foram lidas e false se houver algum
+     *         problema.
+     */
+    public static boolean imprimirRelatorio(String nomeAgencia, Persistencia persistencia, PrintStream saida) {
+        saida.println("\n==== Agência " + nomeAgencia + " ====");
+        long[] quantidade = { 0 };
+        boolean percorreu = persistencia.percorrerContas(conta -> {
+            saida.println(conta.extrato());
+            quantidade[0]++;
+        });
+        if (quantidade[0] == 0) {
+            saida.println("Não há contas nessa agência.");
+        }
+        return percorreu;
+    }
+
+    /**
+     * Gera um resumo das contas persistidas: quantidade de contas, saldo total
+     * e a conta com maior saldo.
+     *
+     * @param persistencia Persistência de onde os dados são lidos.
+     * @return O resumo no formato "Contas: N - saldo total: R$ X - maior: Conta
+     *         NNN - saldo: R$ Y"
+     */
+    public static String gerarResumo(Persistencia persistencia) {
+        String resumo = "Contas: " + persistencia.contarContas() + " - saldo total: R$ " + persistencia.somarSaldos();
+        List<Conta> maiores = persistencia.maioresSaldos(1);
+        if (!maiores.isEmpty()) {
+            resumo += " - maior: " + maiores.get(0).extrato();
+        }
+        return resumo;
+    }
+}
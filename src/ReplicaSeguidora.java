@@ -0,0 +1,454 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Réplica de uma agência, executando em outro processo da mesma máquina que a
+ * agência primária (veja Agencia.iniciarReplicacao e ReplicacaoPrimaria).
+ *
+ * A réplica se conecta à primária, recebe um snapshot das contas e depois
+ * aplica, na ordem, os lotes de operações enviados por ela. As contas são
+ * salvas na persistência da réplica: a cada lote, se a persistência aceita
+ * salvamento parcial, ou a cada 5 segundos, caso contrário. Depois de cada
+ * salvamento, a réplica guarda no arquivo replica.sequencia o identificador da
+ * primária e a sequência da última operação salva (para persistências com
+ * salvamento parcial, no máximo uma vez por segundo; o arquivo pode ficar
+ * atrás das contas salvas, mas nunca à frente, e aplicar de novo uma operação
+ * apenas repete os mesmos saldos).
+ *
+ * Ao iniciar, a réplica carrega as contas da sua persistência e a sequência
+ * guardada. Ao se conectar (ou reconectar, se a conexão cair), ela informa à
+ * primária essa sequência e recebe apenas as operações seguintes, se elas
+ * ainda estiverem no log da primária; caso contrário, recebe um novo snapshot.
+ *
+ * A réplica atende apenas consultas (relatório e estatísticas), tirando essa
+ * carga da primária, e informa o seu atraso em relação a ela: quantas
+ * operações faltam ser aplicadas e há quanto tempo a última operação aplicada
+ * foi realizada na primária.
+ *
+ * Uso: java ReplicaSeguidora porta [texto|binario|bd|camadas]
+ *
+ * ATENÇÃO: as persistências usam arquivos com nomes fixos, então a réplica
+ * deve ser executada em uma pasta diferente da primária.
+ */
+public class ReplicaSeguidora {
+    // intervalo entre salvamentos, para persistências sem salvamento parcial
+    private final long INTERVALO_SALVAMENTO = 5000;
+    // tempo de espera antes de tentar se reconectar à primária
+    private final long INTERVALO_RECONEXAO = 1000;
+    // intervalo mínimo entre gravações do arquivo de sequência, para
+    // persistências com salvamento parcial
+    private final long INTERVALO_SEQUENCIA = 1000;
+    // nome do arquivo onde são guardadas a primária e a sequência das contas
+    // salvas
+    private final String NOME_ARQUIVO_SEQUENCIA = "replica.sequencia";
+
+    // porta onde a primária aceita as conexões
+    private final int porta;
+    // persistência da réplica
+    private final Persistencia persistencia;
+    // contas da réplica, protegidas pela trava
+    private final Map<Integer, Conta> contas;
+    private EstatisticasAgencia estatisticas;
+    private final ReentrantReadWriteLock trava;
+    // identificador da primária de onde vieram as contas (zero se a réplica
+    // ainda não tem contas)
+    private volatile long identificadorPrimaria;
+    // sequência da última operação aplicada e da última operação da primária
+    private volatile long sequenciaAplicada;
+    private volatile long sequenciaPrimaria;
+    // atraso, em milissegundos, da última operação aplicada
+    private volatile long atrasoMs;
+    private volatile boolean conectada;
+    private volatile boolean finalizada;
+    // indica que um salvamento falhou e todas as contas devem ser salvas
+    // (usado apenas pela thread de recepção)
+    private boolean salvamentoPendente;
+    // instante da última gravação do arquivo de sequência (protegido pelo
+    // objeto, como os salvamentos)
+    private long ultimaGravacaoSequencia;
+
+    /**
+     * Cria uma réplica.
+     *
+     * @param porta        Porta local onde a primária aceita as conexões.
+     * @param persistencia Persistência da réplica.
+     */
+    public ReplicaSeguidora(int porta, Persistencia persistencia) {
+        this.porta = porta;
+        this.persistencia = persistencia;
+        contas = new HashMap<>();
+        estatisticas = new EstatisticasAgencia();
+        trava = new ReentrantReadWriteLock();
+        if (!persistencia.criada() && !persistencia.criarPersistencia()) {
+            throw new RuntimeException("Não foi possível criar a persistência da réplica");
+        }
+        carregarEstado();
+    }
+
+    /*
+     * Carrega as contas salvas pela réplica e a sequência guardada com elas.
+     * Se não houver sequência guardada ou as contas não puderem ser lidas, a
+     * réplica começa sem contas e recebe um snapshot da primária.
+     */
+    private void carregarEstado() {
+        if (!new File(NOME_ARQUIVO_SEQUENCIA).exists()) {
+            return;
+        }
+        long identificador;
+        long sequencia;
+        try (BufferedReader arquivo = new BufferedReader(new FileReader(NOME_ARQUIVO_SEQUENCIA))) {
+            identificador = Long.parseLong(arquivo.readLine().trim());
+            sequencia = Long.parseLong(arquivo.readLine().trim());
+        } catch (IOException | RuntimeException e) {
+            RegistroEventos.erro("ReplicaSeguidora", "Houve um erro ao tentar ler o arquivo "
+                    + NOME_ARQUIVO_SEQUENCIA + "; a réplica receberá um snapshot", e);
+            return;
+        }
+        Map<Integer, Conta> salvas = new HashMap<>();
+        EstatisticasAgencia estatisticasSalvas = new EstatisticasAgencia();
+        boolean leu = persistencia.percorrerContas(conta -> {
+            if (salvas.put(conta.getNumero(), conta) == null) {
+                estatisticasSalvas.registrarConta(conta.getSaldo());
+            }
+        });
+        if (!leu) {
+            System.out.println("Não foi possível ler as contas salvas pela réplica; ela receberá um snapshot");
+            return;
+        }
+        contas.putAll(salvas);
+        estatisticas = estatisticasSalvas;
+        identificadorPrimaria = identificador;
+        sequenciaAplicada = sequencia;
+        sequenciaPrimaria = sequencia;
+        System.out.println("Réplica carregada (" + contas.size() + " contas, sequência " + sequencia + ")");
+    }
+
+    /**
+     * Inicia a thread que se conecta à primária e aplica as operações.
+     */
+    public void iniciar() {
+        Thread recepcao = new Thread(this::receber, "replica-recepcao");
+        recepcao.setDaemon(true);
+        recepcao.start();
+    }
+
+    /*
+     * Conecta-se à primária e aplica o que ela envia, reconectando-se se a
+     * conexão cair ou se houver um erro ao salvar as contas (executado por uma
+     * thread própria)
+     */
+    private void receber() {
+        while (!finalizada) {
+            try (Socket conexao = new Socket(InetAddress.getLoopbackAddress(), porta);
+                    DataInputStream entrada = new DataInputStream(
+                            new BufferedInputStream(conexao.getInputStream(), 1 << 16));
+                    DataOutputStream saida = new DataOutputStream(
+                            new BufferedOutputStream(conexao.getOutputStream()))) {
+                conectada = true;
+                saida.writeByte('R');
+                saida.writeLong(identificadorPrimaria);
+                saida.writeLong(sequenciaAplicada);
+                saida.flush();
+                byte resposta = entrada.readByte();
+                if (resposta == 'S') {
+                    receberSnapshot(entrada);
+                    System.out.println("Réplica sincronizada (" + contas.size() + " contas, sequência "
+                            + sequenciaAplicada + ")");
+                } else if (resposta == 'C') {
+                    receberContinuacao(entrada);
+                    System.out.println("Réplica continuando a partir da sequência " + sequenciaAplicada);
+                } else {
+                    throw new IOException("Mensagem inesperada da primária");
+                }
+                long ultimoSalvamento = System.currentTimeMillis();
+                List<Conta> alteradas = new ArrayList<>();
+                while (!finalizada) {
+                    receberLote(entrada, alteradas);
+                    if (persistencia.salvamentoParcial() && !salvamentoPendente) {
+                        if (!alteradas.isEmpty()
+                                && !salvar(alteradas, identificadorPrimaria, sequenciaAplicada, true)) {
+                            // as contas alteradas serão salvas junto com as demais
+                            salvamentoPendente = true;
+                        }
+                    } else if (System.currentTimeMillis() - ultimoSalvamento >= INTERVALO_SALVAMENTO) {
+                        salvamentoPendente = !salvarTudo();
+                        ultimoSalvamento = System.currentTimeMillis();
+                    }
+                    alteradas.clear();
+                }
+            } catch (IOException e) {
+                if (conectada) {
+                    System.out.println("Conexão com a primária perdida; tentando reconectar...");
+                }
+            } catch (RuntimeException e) {
+                // as operações recebidas já foram aplicadas às contas; as
+                // contas alteradas ainda não salvas serão salvas junto com as
+                // demais
+                salvamentoPendente = true;
+                RegistroEventos.erro("ReplicaSeguidora",
+                        "Houve um erro ao aplicar as operações da primária; tentando reconectar...", e);
+            } finally {
+                conectada = false;
+            }
+            try {
+                Thread.sleep(INTERVALO_RECONEXAO);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Substitui as contas da réplica pelas do snapshot enviado pela primária
+     * (depois do 'S')
+     */
+    private void receberSnapshot(DataInputStream entrada) throws IOException {
+        long identificador = entrada.readLong();
+        long sequencia = entrada.readLong();
+        int quantidade = entrada.readInt();
+        Map<Integer, Conta> recebidas = new HashMap<>(quantidade * 4 / 3 + 1);
+        EstatisticasAgencia novasEstatisticas = new EstatisticasAgencia();
+        for (int i = 0; i < quantidade; i++) {
+            Conta conta = new Conta(entrada.readInt(), entrada.readDouble());
+            recebidas.put(conta.getNumero(), conta);
+            novasEstatisticas.registrarConta(conta.getSaldo());
+        }
+        trava.writeLock().lock();
+        try {
+            contas.clear();
+            contas.putAll(recebidas);
+            estatisticas = novasEstatisticas;
+            identificadorPrimaria = identificador;
+            sequenciaAplicada = sequencia;
+            sequenciaPrimaria = sequencia;
+        } finally {
+            trava.writeLock().unlock();
+        }
+        salvamentoPendente = !salvarTudo();
+    }
+
+    /*
+     * Confere a continuação enviada pela primária (depois do 'C'): as
+     * operações seguintes começam logo depois da última aplicada
+     */
+    private void receberContinuacao(DataInputStream entrada) throws IOException {
+        long identificador = entrada.readLong();
+        long sequencia = entrada.readLong();
+        if (identificador != identificadorPrimaria || sequencia != sequenciaAplicada) {
+            throw new IOException("Continuação inesperada da primária");
+        }
+    }
+
+    /*
+     * Aplica um lote de operações enviado pela primária, guardando as contas
+     * alteradas
+     */
+    private void receberLote(DataInputStream entrada, List<Conta> alteradas) throws IOException {
+        if (entrada.readByte() != 'L') {
+            throw new IOException("Mensagem inesperada da primária");
+        }
+        long ultimaSequencia = entrada.readLong();
+        int quantidade = entrada.readInt();
+        // o lote é lido por inteiro antes de ser aplicado, para que as
+        // consultas não fiquem esperando a leitura da conexão
+        long ultimaAplicada = sequenciaAplicada;
+        long instante = 0;
+        List<Conta> recebidas = new ArrayList<>(quantidade);
+        for (int i = 0; i < quantidade; i++) {
+            ultimaAplicada = entrada.readLong();
+            instante = entrada.readLong();
+            int contasAlteradas = entrada.readInt();
+            for (int j = 0; j < contasAlteradas; j++) {
+                recebidas.add(new Conta(entrada.readInt(), entrada.readDouble()));
+            }
+        }
+        // o lote inteiro é aplicado de uma vez, para que as consultas nunca
+        // vejam uma operação pela metade
+        trava.writeLock().lock();
+        try {
+            for (Conta conta : recebidas) {
+                aplicar(conta);
+            }
+            alteradas.addAll(recebidas);
+            sequenciaAplicada = ultimaAplicada;
+            sequenciaPrimaria = ultimaSequencia;
+        } finally {
+            trava.writeLock().unlock();
+        }
+        if (quantidade > 0) {
+            atrasoMs = System.currentTimeMillis() - instante;
+        } else if (ultimaAplicada == ultimaSequencia) {
+            atrasoMs = 0;
+        }
+    }
+
+    /*
+     * Aplica o novo saldo de uma conta (criando-a, se necessário). As contas
+     * são substituídas, e não alteradas, para que as cópias guardadas para
+     * salvamento não mudem.
+     */
+    private void aplicar(Conta conta) {
+        Conta anterior = contas.put(conta.getNumero(), conta);
+        if (anterior == null) {
+            estatisticas.registrarConta(conta.getSaldo());
+        } else {
+            estatisticas.registrarAlteracao(anterior.getSaldo(), conta.getSaldo());
+        }
+    }
+
+    /*
+     * Salva todas as contas da réplica na persistência
+     */
+    private boolean salvarTudo() {
+        List<Conta> copias;
+        long identificador;
+        long sequencia;
+        trava.readLock().lock();
+        try {
+            copias = new ArrayList<>(contas.values());
+            identificador = identificadorPrimaria;
+            sequencia = sequenciaAplicada;
+        } finally {
+            trava.readLock().unlock();
+        }
+        return salvar(copias, identificador, sequencia, false);
+    }
+
+    /*
+     * Salva contas na persistência (um salvamento de cada vez, já que a
+     * finalização pode salvar enquanto a thread de recepção também salva) e,
+     * se deu certo, guarda a sequência das contas salvas (para salvamentos
+     * parciais, no máximo uma vez a cada INTERVALO_SEQUENCIA)
+     */
+    private synchronized boolean salvar(List<Conta> copias, long identificador, long sequencia,
+            boolean parcial) {
+        if (!persistencia.salvarContas(copias)) {
+            return false;
+        }
+        if (!parcial || System.currentTimeMillis() - ultimaGravacaoSequencia >= INTERVALO_SEQUENCIA) {
+            gravarSequencia(identificador, sequencia);
+        }
+        return true;
+    }
+
+    /*
+     * Guarda no arquivo de sequência a primária e a sequência das contas
+     * salvas
+     */
+    private void gravarSequencia(long identificador, long sequencia) {
+        ultimaGravacaoSequencia = System.currentTimeMillis();
+        try (FileWriter arquivo = new FileWriter(NOME_ARQUIVO_SEQUENCIA)) {
+            arquivo.write(identificador + "\n" + sequencia + "\n");
+        } catch (IOException e) {
+            RegistroEventos.erro("ReplicaSeguidora",
+                    "Houve um erro ao tentar salvar o arquivo " + NOME_ARQUIVO_SEQUENCIA, e);
+        }
+    }
+
+    /**
+     * Gera um relatório com as contas da réplica.
+     *
+     * @return Relatório.
+     */
+    public String gerarRelatorio() {
+        StringBuilder relatorio = new StringBuilder("\n==== Réplica ====\n");
+        trava.readLock().lock();
+        try {
+            if (contas.isEmpty()) {
+                relatorio.append("Não há contas na réplica.\n");
+            }
+            for (Conta conta : contas.values()) {
+                relatorio.append(conta.extrato()).append('\n');
+            }
+        } finally {
+            trava.readLock().unlock();
+        }
+        return relatorio.toString();
+    }
+
+    /**
+     * Retorna uma cópia das estatísticas das contas da réplica (as
+     * estatísticas da réplica são alteradas a cada lote aplicado).
+     *
+     * @return Estatísticas.
+     */
+    public EstatisticasAgencia getEstatisticas() {
+        trava.readLock().lock();
+        try {
+            return new EstatisticasAgencia(estatisticas);
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retorna uma descrição do atraso da réplica em relação à primária.
+     *
+     * @return Atraso em operações e em milissegundos.
+     */
+    public String descreverAtraso() {
+        if (!conectada) {
+            return "Desconectada da primária (última sequência aplicada: " + sequenciaAplicada + ")";
+        }
+        return "Sequência aplicada: " + sequenciaAplicada + " - primária: " + sequenciaPrimaria
+                + " - atraso: " + Math.max(0, sequenciaPrimaria - sequenciaAplicada) + " operações, "
+                + atrasoMs + " ms";
+    }
+
+    /**
+     * Finaliza a réplica, salvando as contas.
+     *
+     * @return true se as contas foram salvas corretamente e false caso contrário
+     */
+    public boolean finalizar() {
+        finalizada = true;
+        boolean salvou = salvarTudo();
+        return persistencia.finalizar() && salvou;
+    }
+
+    /**
+     * Executa a réplica a partir da linha de comando.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Uso: java ReplicaSeguidora porta [texto|binario|bd|camadas]");
+            return;
+        }
+        ReplicaSeguidora replica = new ReplicaSeguidora(Integer.parseInt(args[0]),
+                Persistencia.criar(args.length > 1 ? args[1] : "binario"));
+        replica.iniciar();
+
+        Scanner entrada = new Scanner(System.in);
+        System.out.println("Comandos: relatorio, estatisticas, atraso, sair");
+        while (entrada.hasNextLine()) {
+            String comando = entrada.nextLine().trim();
+            if (comando.equals("relatorio")) {
+                System.out.println(replica.gerarRelatorio());
+            } else if (comando.equals("estatisticas")) {
+                System.out.println(replica.getEstatisticas());
+            } else if (comando.equals("atraso")) {
+                System.out.println(replica.descreverAtraso());
+            } else if (comando.equals("sair")) {
+                break;
+            } else if (!comando.isEmpty()) {
+                System.out.println("Comando desconhecido: " + comando);
+            }
+        }
+        System.exit(replica.finalizar() ? 0 : 1);
+    }
+}
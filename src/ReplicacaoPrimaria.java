@@ -0,0 +1,371 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lado primário da replicação de uma agência: envia as operações realizadas
+ * para réplicas (veja ReplicaSeguidora) executando em outros processos da
+ * mesma máquina.
+ *
+ * Cada operação recebe um número de sequência e é registrada como os novos
+ * saldos das contas que ela alterou. As últimas operações (até LIMITE_LOG)
+ * ficam guardadas em um log em memória.
+ *
+ * Quando uma réplica se conecta, ela informa o identificador da primária de
+ * onde vieram as suas contas e a sequência da última operação que ela já
+ * aplicou (a réplica guarda esses dados junto com a sua persistência). Se o
+ * identificador é o desta primária e as operações seguintes ainda estão no
+ * log, a réplica continua de onde parou: recebe apenas essas operações. Caso
+ * contrário (uma réplica nova, uma primária reiniciada ou uma réplica que
+ * ficou para trás do log), ela recebe primeiro um snapshot das contas, com o
+ * número de sequência da última operação anterior a ele. Depois, as operações
+ * registradas são enviadas em lotes por uma thread própria. Quando não há
+ * operações, é enviado um lote vazio a cada segundo, para que a réplica saiba
+ * até onde a primária já chegou e possa medir o seu atraso.
+ *
+ * Protocolo (DataOutputStream):
+ * - pedido da réplica: 'R', identificador da primária (long, zero se a réplica
+ * não tem contas) e sequência da última operação aplicada (long);
+ * - continuação: 'C', identificador (long) e sequência a partir da qual as
+ * operações serão enviadas (long);
+ * - snapshot: 'S', identificador (long), sequência (long), quantidade de
+ * contas (int) e, para cada conta, número (int) e saldo (double);
+ * - lote: 'L', última sequência da primária (long), quantidade de operações
+ * (int) e, para cada operação, sequência (long), instante em milissegundos
+ * (long), quantidade de contas (int) e, para cada conta, número (int) e saldo
+ * (double).
+ *
+ * Se uma réplica não acompanha as operações e a sua fila enche, ela é
+ * desconectada (ao se reconectar, continua pelo log, se ainda for possível).
+ */
+public class ReplicacaoPrimaria {
+    // quantidade máxima de operações enviadas em cada lote
+    private final int TAMANHO_LOTE = 1000;
+    // quantidade máxima de operações esperando para serem enviadas a uma réplica
+    private final int LIMITE_FILA = 1_000_000;
+    // intervalo máximo entre dois lotes, em milissegundos
+    private final int INTERVALO_LOTES = 1000;
+    // tempo máximo, em milissegundos, que a finalização espera as réplicas
+    // receberem as operações já registradas
+    private final long ESPERA_FINALIZACAO = 5000;
+    // quantidade de operações guardadas no log para as réplicas que se
+    // reconectam
+    private final int LIMITE_LOG = 100_000;
+    // tempo máximo, em milissegundos, para a réplica enviar o seu pedido
+    private final int ESPERA_PEDIDO = 5000;
+
+    // recebe as conexões das réplicas
+    private final ServerSocket servidor;
+    // tira um snapshot das contas da agência
+    private final Supplier<SnapshotAgencia> fornecedorSnapshot;
+    // identifica esta execução da primária (as sequências recomeçam a cada
+    // execução)
+    private final long identificador;
+    // número de sequência da última operação registrada
+    private final AtomicLong ultimaSequencia;
+    // últimas operações registradas, em ordem de sequência (acessado apenas
+    // com o objeto travado)
+    private final ArrayDeque<Operacao> log;
+    // réplicas conectadas
+    private final List<Seguidor> seguidores;
+    private volatile boolean finalizada;
+
+    /**
+     * Inicia a replicação, aguardando conexões de réplicas na porta passada
+     * (apenas conexões da própria máquina são aceitas).
+     *
+     * @param porta              Porta local.
+     * @param fornecedorSnapshot Tira um snapshot das contas da agência, com o
+     *                           número de sequência da última operação
+     *                           registrada antes dele.
+     */
+    public ReplicacaoPrimaria(int porta, Supplier<SnapshotAgencia> fornecedorSnapshot) throws IOException {
+        this.fornecedorSnapshot = fornecedorSnapshot;
+        long sorteado = ThreadLocalRandom.current().nextLong();
+        identificador = sorteado != 0 ? sorteado : 1;
+        ultimaSequencia = new AtomicLong();
+        log = new ArrayDeque<>();
+        seguidores = new CopyOnWriteArrayList<>();
+        servidor = new ServerSocket(porta, 50, InetAddress.getLoopbackAddress());
+        Thread conexoes = new Thread(this::aceitarConexoes, "replicacao-conexoes");
+        conexoes.setDaemon(true);
+        conexoes.start();
+    }
+
+    /**
+     * Retorna o número de sequência da última operação registrada.
+     *
+     * @return Número de sequência.
+     */
+    public long getUltimaSequencia() {
+        return ultimaSequencia.get();
+    }
+
+    /**
+     * Registra uma operação, dados os novos saldos das contas alteradas por
+     * ela. Deve ser chamado com as contas travadas.
+     *
+     * O número de sequência é obtido e a operação é guardada no log e
+     * enfileirada para as réplicas de uma só vez (com o objeto travado), para
+     * que as operações cheguem ao log e às filas na ordem das suas sequências,
+     * mesmo quando alteram contas diferentes.
+     *
+     * @param alteradas Contas alteradas pela operação.
+     */
+    public void registrar(Conta... alteradas) {
+        int[] numeros = new int[alteradas.length];
+        double[] saldos = new double[alteradas.length];
+        for (int i = 0; i < alteradas.length; i++) {
+            numeros[i] = alteradas[i].getNumero();
+            saldos[i] = alteradas[i].getSaldo();
+        }
+        synchronized (this) {
+            Operacao operacao = new Operacao(ultimaSequencia.incrementAndGet(), System.currentTimeMillis(),
+                    numeros, saldos);
+            log.addLast(operacao);
+            if (log.size() > LIMITE_LOG) {
+                log.removeFirst();
+            }
+            for (Seguidor seguidor : seguidores) {
+                seguidor.enfileirar(operacao);
+            }
+        }
+    }
+
+    /**
+     * Finaliza a replicação: para de aceitar conexões e aguarda o envio das
+     * operações já registradas para as réplicas conectadas. As réplicas que
+     * não recebem tudo dentro do tempo máximo (por exemplo, uma que parou de
+     * ler a conexão) são desconectadas.
+     */
+    public void finalizar() {
+        finalizada = true;
+        try {
+            servidor.close();
+        } catch (IOException e) {
+            // o servidor já está fechado
+        }
+        long prazo = System.currentTimeMillis() + ESPERA_FINALIZACAO;
+        try {
+            for (Seguidor seguidor : seguidores) {
+                seguidor.join(Math.max(1, prazo - System.currentTimeMillis()));
+            }
+            // fechar a conexão interrompe um envio bloqueado
+            for (Seguidor seguidor : seguidores) {
+                RegistroEventos.aviso("ReplicacaoPrimaria", "Réplica desconectada ao finalizar, sem receber"
+                        + " todas as operações: " + seguidor.conexao.getRemoteSocketAddress());
+                seguidor.fechar();
+            }
+            for (Seguidor seguidor : seguidores) {
+                seguidor.join(INTERVALO_LOTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Passa a enviar as novas operações para uma réplica. Se a réplica pode
+     * continuar pelo log a partir da sequência pedida, retorna as operações do
+     * log depois dela; caso contrário, retorna null e a réplica precisa de um
+     * snapshot. Como as operações são registradas com o objeto travado, as
+     * operações retornadas e as enfileiradas depois não se repetem nem deixam
+     * lacunas.
+     */
+    private synchronized List<Operacao> inscrever(Seguidor seguidor, long identificadorPedido,
+            long sequenciaPedida) {
+        seguidores.add(seguidor);
+        long primeiraNoLog = log.isEmpty() ? ultimaSequencia.get() + 1 : log.getFirst().sequencia;
+        if (identificadorPedido != identificador || sequenciaPedida + 1 < primeiraNoLog
+                || sequenciaPedida > ultimaSequencia.get()) {
+            return null;
+        }
+        List<Operacao> operacoes = new ArrayList<>();
+        for (Operacao operacao : log) {
+            if (operacao.sequencia > sequenciaPedida) {
+                operacoes.add(operacao);
+            }
+        }
+        return operacoes;
+    }
+
+    /*
+     * Aceita as conexões das réplicas (executado por uma thread própria)
+     */
+    private void aceitarConexoes() {
+        while (!finalizada) {
+            try {
+                Socket conexao = servidor.accept();
+                conexao.setTcpNoDelay(true);
+                // a réplica passa a receber as operações depois de enviar o
+                // seu pedido (veja Seguidor.run)
+                Seguidor seguidor = new Seguidor(conexao);
+                seguidor.start();
+                RegistroEventos.aviso("ReplicacaoPrimaria", "Réplica conectada: " + conexao.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (!finalizada) {
+                    RegistroEventos.erro("ReplicacaoPrimaria", "Houve um erro ao aceitar a conexão de uma réplica", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Uma operação registrada: sequência, instante e novos saldos das contas
+     */
+    private static final class Operacao {
+        final long sequencia;
+        final long instante;
+        final int[] numeros;
+        final double[] saldos;
+
+        Operacao(long sequencia, long instante, int[] numeros, double[] saldos) {
+            this.sequencia = sequencia;
+            this.instante = instante;
+            this.numeros = numeros;
+            this.saldos = saldos;
+        }
+    }
+
+    /*
+     * Thread que envia o snapshot e as operações para uma réplica
+     */
+    private final class Seguidor extends Thread {
+        private final Socket conexao;
+        private final BlockingQueue<Operacao> fila;
+        // indica que a fila encheu e a réplica deve ser desconectada
+        private volatile boolean atrasado;
+        // indica que a conexão foi fechada pela finalização
+        private volatile boolean fechado;
+
+        Seguidor(Socket conexao) {
+            super("replicacao-" + conexao.getPort());
+            setDaemon(true);
+            this.conexao = conexao;
+            fila = new LinkedBlockingQueue<>(LIMITE_FILA);
+        }
+
+        void enfileirar(Operacao operacao) {
+            if (!atrasado && !fila.offer(operacao)) {
+                atrasado = true;
+            }
+        }
+
+        void fechar() {
+            fechado = true;
+            try {
+                conexao.close();
+            } catch (IOException e) {
+                // a conexão já está fechada
+            }
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = conexao;
+                    DataInputStream entrada = new DataInputStream(
+                            new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream saida = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+                socket.setSoTimeout(ESPERA_PEDIDO);
+                if (entrada.readByte() != 'R') {
+                    throw new IOException("Pedido inesperado da réplica");
+                }
+                long identificadorPedido = entrada.readLong();
+                long sequenciaPedida = entrada.readLong();
+                socket.setSoTimeout(0);
+
+                // a réplica começa a receber as operações antes do snapshot ser
+                // tirado; as anteriores a ele são descartadas no envio
+                List<Operacao> doLog = inscrever(this, identificadorPedido, sequenciaPedida);
+                long sequenciaSnapshot;
+                if (doLog != null) {
+                    saida.writeByte('C');
+                    saida.writeLong(identificador);
+                    saida.writeLong(sequenciaPedida);
+                    for (int i = 0; i < doLog.size(); i += TAMANHO_LOTE) {
+                        enviarLote(saida, ultimaSequencia.get(),
+                                doLog.subList(i, Math.min(i + TAMANHO_LOTE, doLog.size())));
+                    }
+                    saida.flush();
+                    sequenciaSnapshot = sequenciaPedida;
+                } else {
+                    sequenciaSnapshot = enviarSnapshot(saida);
+                }
+                List<Operacao> lote = new ArrayList<>(TAMANHO_LOTE);
+                while (!atrasado && !(finalizada && fila.isEmpty())) {
+                    lote.clear();
+                    Operacao primeira = fila.poll(INTERVALO_LOTES, TimeUnit.MILLISECONDS);
+                    if (primeira != null) {
+                        lote.add(primeira);
+                        fila.drainTo(lote, TAMANHO_LOTE - 1);
+                    }
+                    // a última sequência é lida antes de enviar o lote, para
+                    // que ela nunca seja menor que a do lote
+                    long sequenciaPrimaria = ultimaSequencia.get();
+                    lote.removeIf(operacao -> operacao.sequencia <= sequenciaSnapshot);
+                    enviarLote(saida, sequenciaPrimaria, lote);
+                }
+                if (atrasado) {
+                    RegistroEventos.aviso("ReplicacaoPrimaria",
+                            "Réplica desconectada por não acompanhar as operações: " + socket.getRemoteSocketAddress());
+                }
+            } catch (IOException e) {
+                if (!fechado) {
+                    RegistroEventos.aviso("ReplicacaoPrimaria",
+                            "Réplica desconectada: " + conexao.getRemoteSocketAddress());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                seguidores.remove(this);
+            }
+        }
+
+        private long enviarSnapshot(DataOutputStream saida) throws IOException {
+            SnapshotAgencia snapshot = fornecedorSnapshot.get();
+            saida.writeByte('S');
+            saida.writeLong(identificador);
+            saida.writeLong(snapshot.getSequencia());
+            saida.writeInt(snapshot.getContas().size());
+            for (Conta conta : snapshot.getContas()) {
+                saida.writeInt(conta.getNumero());
+                saida.writeDouble(conta.getSaldo());
+            }
+            saida.flush();
+            return snapshot.getSequencia();
+        }
+
+        private void enviarLote(DataOutputStream saida, long sequenciaPrimaria, List<Operacao> lote)
+                throws IOException {
+            saida.writeByte('L');
+            saida.writeLong(sequenciaPrimaria);
+            saida.writeInt(lote.size());
+            for (Operacao operacao : lote) {
+                saida.writeLong(operacao.sequencia);
+                saida.writeLong(operacao.instante);
+                saida.writeInt(operacao.numeros.length);
+                for (int i = 0; i < operacao.numeros.length; i++) {
+                    saida.writeInt(operacao.numeros[i]);
+                    saida.writeDouble(operacao.saldos[i]);
+                }
+            }
+            saida.flush();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Representa um snapshot (fotografia) das contas de uma agência em um
+ * determinado instante, tirado enquanto as operações continuam acontecendo.
+ *
+ * O snapshot usa a técnica de "cópia na escrita" (copy-on-write): ele não
+ * copia todas as contas de uma vez. Em vez disso, quando uma operação vai
+ * alterar uma conta que o snapshot ainda não leu, o saldo anterior da conta é
+ * preservado no snapshot. Ao ler uma conta, o snapshot usa o saldo preservado
+ * (se houver) ou o saldo atual da conta.
+ *
+ * Os saldos são lidos por uma VisaoAgencia. Vários snapshots podem estar
+ * ativos ao mesmo tempo, cada um com seus saldos preservados.
+ *
+ * Os métodos preservar e lerSaldo devem ser chamados com a conta travada.
+ */
+public class SnapshotAgencia {
+    // número da última conta existente quando o snapshot foi tirado (contas
+    // criadas depois não fazem parte dele)
+    private final int ultimoNumeroConta;
+    // saldos das contas no instante do snapshot, guardados antes de serem
+    // alterados (ou no momento em que a conta foi lida)
+    private final Map<Integer, Double> saldosPreservados;
+    // número de sequência da última operação registrada antes do snapshot
+    // (usado pela replicação)
+    private final long sequencia;
+    // cópias das contas com os saldos do instante do snapshot (preenchida
+    // pela agência quando o snapshot é tirado para ser salvo ou replicado)
+    private final List<Conta> contas;
+
+    /**
+     * Cria um snapshot.
+     *
+     * @param ultimoNumeroConta Número da última conta existente no instante do
+     *                          snapshot.
+     * @param sequencia         Número de sequência da última operação
+     *                          registrada antes do snapshot.
+     */
+    public SnapshotAgencia(int ultimoNumeroConta, long sequencia) {
+        this.ultimoNumeroConta = ultimoNumeroConta;
+        this.sequencia = sequencia;
+        saldosPreservados = new ConcurrentHashMap<>();
+        contas = new ArrayList<>();
+    }
+
+    /**
+     * Retorna o número de sequência da última operação registrada antes do
+     * snapshot.
+     *
+     * @return Número de sequência.
+     */
+    public long getSequencia() {
+        return sequencia;
+    }
+
+    /**
+     * Retorna a lista com as cópias das contas do snapshot, preenchida pela
+     * agência quando o snapshot é tirado para ser salvo ou replicado.
+     *
+     * @return Contas com os saldos do instante do snapshot.
+     */
+    public List<Conta> getContas() {
+        return contas;
+    }
+
+    /**
+     * Retorna se uma conta faz parte do snapshot.
+     *
+     * @param numero Número da conta.
+     * @return true se a conta já existia quando o snapshot foi tirado.
+     */
+    public boolean contem(int numero) {
+        return numero <= ultimoNumeroConta;
+    }
+
+    /**
+     * Preserva o saldo de uma conta antes dele ser alterado (se o snapshot
+     * ainda não tiver o saldo dessa conta).
+     *
+     * @param numero        Número da conta.
+     * @param saldoAnterior Saldo da conta antes da alteração.
+     */
+    public void preservar(int numero, double saldoAnterior) {
+        if (contem(numero)) {
+            saldosPreservados.putIfAbsent(numero, saldoAnterior);
+        }
+    }
+
+    /**
+     * Retorna o saldo de uma conta no instante do snapshot.
+     *
+     * @param conta Conta a ser lida.
+     * @return Saldo da conta no instante do snapshot.
+     */
+    public double lerSaldo(Conta conta) {
+        // se o saldo não havia sido preservado, o saldo atual é o do snapshot;
+        // ele é guardado para que alterações futuras não sejam preservadas
+        Double preservado = saldosPreservados.putIfAbsent(conta.getNumero(), conta.getSaldo());
+        return preservado != null ? preservado : conta.getSaldo();
+    }
+}
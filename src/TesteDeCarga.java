@@ -0,0 +1,340 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gerador de carga para testar o desempenho de uma agência com qualquer uma
+ * das persistências.
+ *
+ * O teste cria contas, e depois várias threads realizam depósitos, saques e
+ * transferências durante um certo tempo. Ao final, é exibida a vazão
+ * (operações por segundo) a cada segundo do teste e as latências (tempo de
+ * resposta) das operações.
+ *
+ * Características da carga:
+ * - algumas contas são muito mais usadas que outras (distribuição de Zipf);
+ * - a proporção entre depósitos, saques e transferências é configurável;
+ * - uma fração dos saques e transferências é feita sem saldo suficiente;
+ * - as operações chegam em uma taxa fixa, independente de quanto tempo as
+ * anteriores demoraram (carga em "laço aberto"). A latência de cada operação
+ * é medida a partir do instante em que ela deveria ter começado, então
+ * atrasos acumulados aparecem nas latências.
+ *
+ * Uso (todos os parâmetros são opcionais):
+ *
+ * <pre>
+ * java TesteDeCarga --persistencia=binario --escrita-atrasada=1000
+ *                   --contas=100000 --duracao=30 --taxa=50000 --threads=8
+ *                   --zipf=1.1 --mix=45,45,10 --falhas=0.02 --replicacao=5000
+ *                   --verificar --eventos=eventos.log
+ * </pre>
+ *
+ * Com --replicacao, a agência aceita uma réplica na porta passada (veja
+ * ReplicaSeguidora), que pode ser executada em outra pasta durante o teste.
+ * Com --verificar, as contas persistidas são comparadas com as da agência ao
+ * final do teste, pelas árvores de Merkle (veja
+ * Agencia.reconciliarPersistencia). Com --eventos, todas as operações são
+ * registradas no arquivo passado (veja RegistroEventos).
+ *
+ * ATENÇÃO: as persistências usam arquivos com nomes fixos (contas.txt,
+ * contas.dat e contas.db) na pasta atual, então o teste deve ser executado
+ * em uma pasta separada para não alterar os dados reais.
+ */
+public class TesteDeCarga {
+    // valor usado nos saques e transferências que devem falhar por falta de saldo
+    private static final double VALOR_SEM_SALDO = 1e15;
+
+    /**
+     * Executa o teste de carga.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parametros = lerParametros(args);
+        String tipoPersistencia = parametros.getOrDefault("persistencia", "binario");
+        long escritaAtrasada = Long.parseLong(parametros.getOrDefault("escrita-atrasada", "0"));
+        int quantidadeContas = Integer.parseInt(parametros.getOrDefault("contas", "100000"));
+        int duracao = Integer.parseInt(parametros.getOrDefault("duracao", "30"));
+        double taxa = Double.parseDouble(parametros.getOrDefault("taxa", "50000"));
+        int quantidadeThreads = Integer.parseInt(parametros.getOrDefault("threads", "8"));
+        double expoenteZipf = Double.parseDouble(parametros.getOrDefault("zipf", "1.1"));
+        String[] mix = parametros.getOrDefault("mix", "45,45,10").split(",");
+        double falhas = Double.parseDouble(parametros.getOrDefault("falhas", "0.02"));
+        int portaReplicacao = Integer.parseInt(parametros.getOrDefault("replicacao", "0"));
+        boolean verificar = Boolean.parseBoolean(parametros.getOrDefault("verificar", "false"));
+        String arquivoEventos = parametros.get("eventos");
+
+        if (mix.length != 3) {
+            System.out.println("O parâmetro --mix precisa de três pesos: depósitos, saques e transferências");
+            exibirUso();
+            return;
+        }
+        double pesoDeposito = Double.parseDouble(mix[0]);
+        double pesoSaque = Double.parseDouble(mix[1]);
+        double pesoTransferencia = Double.parseDouble(mix[2]);
+        double somaPesos = pesoDeposito + pesoSaque + pesoTransferencia;
+
+        if (arquivoEventos != null) {
+            RegistroEventos.iniciar(arquivoEventos, 64 << 20);
+        }
+        Persistencia persistencia = Persistencia.criar(tipoPersistencia);
+        if (escritaAtrasada > 0) {
+            persistencia = new PersistenciaEscritaAtrasada(persistencia, escritaAtrasada, 100000);
+        }
+        if (verificar) {
+            persistencia = new PersistenciaComArvore(persistencia);
+        }
+
+        System.out.println("Preparando " + quantidadeContas + " contas (persistência: " + tipoPersistencia
+                + (escritaAtrasada > 0 ? ", escrita atrasada de " + escritaAtrasada + " ms" : "") + ")...");
+        Agencia agencia = new Agencia("Teste de Carga", persistencia);
+        if (verificar) {
+            agencia.habilitarArvoreMerkle();
+        }
+        if (portaReplicacao > 0) {
+            agencia.iniciarReplicacao(portaReplicacao);
+        }
+        int[] contas = new int[quantidadeContas];
+        for (int i = 0; i < quantidadeContas; i++) {
+            contas[i] = agencia.criarConta();
+            agencia.depositar(contas[i], 1000);
+        }
+        GeradorZipf zipf = new GeradorZipf(quantidadeContas, expoenteZipf);
+
+        System.out.println("Executando " + duracao + " s a " + taxa + " operações/s com " + quantidadeThreads
+                + " threads (mix " + String.join("/", mix) + ", zipf " + expoenteZipf + ", falhas " + falhas + ")\n");
+
+        // cada thread recebe uma parte das chegadas, com intervalos aleatórios
+        // (exponenciais) entre elas
+        long intervaloMedio = (long) (1e9 * quantidadeThreads / taxa);
+        long inicio = System.nanoTime() + 100_000_000L;
+        long fim = inicio + duracao * 1_000_000_000L;
+        Trabalhador[] trabalhadores = new Trabalhador[quantidadeThreads];
+        Thread[] threads = new Thread[quantidadeThreads];
+        for (int i = 0; i < quantidadeThreads; i++) {
+            trabalhadores[i] = new Trabalhador(duracao);
+            Trabalhador trabalhador = trabalhadores[i];
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+                long chegada = inicio;
+                while (true) {
+                    chegada += (long) (-Math.log(1 - aleatorio.nextDouble()) * intervaloMedio);
+                    if (chegada >= fim) {
+                        break;
+                    }
+                    long agora = System.nanoTime();
+                    while (agora < chegada) {
+                        LockSupport.parkNanos(chegada - agora);
+                        agora = System.nanoTime();
+                    }
+
+                    double sorteio = aleatorio.nextDouble() * somaPesos;
+                    boolean semSaldo = aleatorio.nextDouble() < falhas;
+                    double valor = semSaldo ? VALOR_SEM_SALDO : 1 + aleatorio.nextInt(100);
+                    int conta = contas[zipf.sortear(aleatorio)];
+                    try {
+                        if (sorteio < pesoDeposito) {
+                            agencia.depositar(conta, 1 + aleatorio.nextInt(100));
+                        } else if (sorteio < pesoDeposito + pesoSaque) {
+                            agencia.sacar(conta, valor);
+                        } else {
+                            agencia.transferir(conta, contas[zipf.sortear(aleatorio)], valor);
+                        }
+                    } catch (SaldoInsuficienteException e) {
+                        trabalhador.falhasSaldo++;
+                    } catch (RuntimeException e) {
+                        trabalhador.erros++;
+                    }
+
+                    trabalhador.registrar((int) ((chegada - inicio) / 1_000_000_000L), System.nanoTime() - chegada);
+                }
+            }, "carga-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // junta os resultados das threads e exibe o relatório
+        Histograma total = new Histograma();
+        long falhasSaldo = 0;
+        long erros = 0;
+        System.out.println(String.format("%8s %12s %12s %12s %12s", "segundo", "ops/s", "p50 (us)", "p99 (us)",
+                "máx (us)"));
+        for (int segundo = 0; segundo < duracao; segundo++) {
+            Histograma doSegundo = new Histograma();
+            for (Trabalhador trabalhador : trabalhadores) {
+                doSegundo.somar(trabalhador.porSegundo[segundo]);
+            }
+            total.somar(doSegundo);
+            System.out.println(String.format("%8d %12d %12.1f %12.1f %12.1f", segundo + 1, doSegundo.total,
+                    doSegundo.percentil(0.50) / 1e3, doSegundo.percentil(0.99) / 1e3, doSegundo.maximo / 1e3));
+        }
+        for (Trabalhador trabalhador : trabalhadores) {
+            falhasSaldo += trabalhador.falhasSaldo;
+            erros += trabalhador.erros;
+        }
+
+        System.out.println("\nOperações: " + total.total + " (" + String.format("%.0f", total.total / (double) duracao)
+                + " ops/s em média)");
+        System.out.println("Saldo insuficiente: " + falhasSaldo + " - outros erros: " + erros);
+        System.out.println(String.format("Latência (us): p50 %.1f - p90 %.1f - p99 %.1f - p99,9 %.1f - máx %.1f",
+                total.percentil(0.50) / 1e3, total.percentil(0.90) / 1e3, total.percentil(0.99) / 1e3,
+                total.percentil(0.999) / 1e3, total.maximo / 1e3));
+
+        if (verificar) {
+            long inicioVerificacao = System.nanoTime();
+            List<Conta> diferentes = agencia.reconciliarPersistencia();
+            System.out.println("Verificação da persistência: " + (System.nanoTime() - inicioVerificacao) / 1_000_000
+                    + " ms - " + (diferentes == null ? "houve erro ao ler as contas!"
+                            : diferentes.size() + " contas diferentes (salvas de novo)"));
+        }
+
+        long inicioFinalizacao = System.nanoTime();
+        boolean salvou = agencia.finalizar();
+        System.out.println("Finalização (salvar contas): " + (System.nanoTime() - inicioFinalizacao) / 1_000_000
+                + " ms" + (salvou ? "" : " - houve erro ao salvar!"));
+        System.out.println(agencia.getEstatisticas());
+        if (arquivoEventos != null) {
+            System.out.println("Eventos registrados: " + RegistroEventos.getRegistrados() + " - descartados: "
+                    + RegistroEventos.getDescartados());
+            RegistroEventos.finalizar();
+        }
+    }
+
+    /*
+     * Exibe os parâmetros aceitos pelo teste
+     */
+    private static void exibirUso() {
+        System.out.println("Uso: java TesteDeCarga [--persistencia=texto|binario|bd|camadas]"
+                + " [--escrita-atrasada=ms] [--contas=n] [--duracao=s] [--taxa=operacoes/s]"
+                + " [--threads=n] [--zipf=expoente] [--mix=depositos,saques,transferencias]"
+                + " [--falhas=fracao] [--replicacao=porta] [--verificar] [--eventos=arquivo]");
+    }
+
+    /*
+     * Lê os parâmetros no formato --nome=valor
+     */
+    private static Map<String, String> lerParametros(String[] args) {
+        Map<String, String> parametros = new HashMap<>();
+        for (String arg : args) {
+            String[] partes = arg.replaceFirst("^--", "").split("=", 2);
+            parametros.put(partes[0], partes.length > 1 ? partes[1] : "true");
+        }
+        return parametros;
+    }
+
+    /*
+     * Resultados de uma das threads do teste (acessados apenas por ela até o
+     * fim do teste)
+     */
+    private static class Trabalhador {
+        // latências das operações, separadas pelo segundo em que chegaram
+        private final Histograma[] porSegundo;
+        // quantidade de operações que falharam por saldo insuficiente
+        private long falhasSaldo;
+        // quantidade de operações que falharam por outros motivos
+        private long erros;
+
+        Trabalhador(int duracao) {
+            porSegundo = new Histograma[duracao];
+            for (int i = 0; i < duracao; i++) {
+                porSegundo[i] = new Histograma();
+            }
+        }
+
+        void registrar(int segundo, long latencia) {
+            porSegundo[segundo].registrar(latencia);
+        }
+    }
+
+    /*
+     * Sorteia posições de 0 a n-1 seguindo a distribuição de Zipf: a posição
+     * k é sorteada com probabilidade proporcional a 1 / (k+1)^expoente
+     */
+    private static class GeradorZipf {
+        // probabilidade acumulada de cada posição
+        private final double[] acumulada;
+
+        GeradorZipf(int n, double expoente) {
+            acumulada = new double[n];
+            double soma = 0;
+            for (int k = 0; k < n; k++) {
+                soma += 1 / Math.pow(k + 1, expoente);
+                acumulada[k] = soma;
+            }
+            for (int k = 0; k < n; k++) {
+                acumulada[k] /= soma;
+            }
+        }
+
+        int sortear(ThreadLocalRandom aleatorio) {
+            double sorteio = aleatorio.nextDouble();
+            int inicio = 0;
+            int fim = acumulada.length - 1;
+            while (inicio < fim) {
+                int meio = (inicio + fim) >>> 1;
+                if (acumulada[meio] < sorteio) {
+                    inicio = meio + 1;
+                } else {
+                    fim = meio;
+                }
+            }
+            return inicio;
+        }
+    }
+
+    /*
+     * Histograma de latências em nanossegundos. Os valores são agrupados em
+     * faixas com erro de no máximo 1/16 (cerca de 6%), o que permite calcular
+     * percentis guardando apenas a quantidade de valores em cada faixa
+     */
+    private static class Histograma {
+        private final long[] contagens = new long[64 * 16];
+        private long total;
+        private long maximo;
+
+        void registrar(long valor) {
+            contagens[faixa(Math.max(valor, 0))]++;
+            total++;
+            maximo = Math.max(maximo, valor);
+        }
+
+        void somar(Histograma outro) {
+            for (int i = 0; i < contagens.length; i++) {
+                contagens[i] += outro.contagens[i];
+            }
+            total += outro.total;
+            maximo = Math.max(maximo, outro.maximo);
+        }
+
+        long percentil(double fracao) {
+            long alvo = (long) Math.ceil(fracao * total);
+            long acumulado = 0;
+            for (int i = 0; i < contagens.length; i++) {
+                acumulado += contagens[i];
+                if (acumulado >= alvo && acumulado > 0) {
+                    return Math.min(valor(i), maximo);
+                }
+            }
+            return 0;
+        }
+
+        private static int faixa(long valor) {
+            if (valor < 16) {
+                return (int) valor;
+            }
+            int expoente = 63 - Long.numberOfLeadingZeros(valor);
+            int mantissa = (int) ((valor >>> (expoente - 4)) & 15);
+            return (expoente - 3) * 16 + mantissa;
+        }
+
+        private static long valor(int faixa) {
+            if (faixa < 16) {
+                return faixa;
+            }
+            int expoente = faixa / 16 + 3;
+            return (16L + faixa % 16) << (expoente - 4);
+        }
+    }
+}
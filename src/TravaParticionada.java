@@ -0,0 +1,77 @@
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trava de leitura/escrita dividida em várias faixas.
+ *
+ * As operações comuns da agência (depósitos, saques, etc.) travam apenas uma
+ * das faixas, escolhida a partir da thread que está executando, no modo
+ * compartilhado. Assim, várias operações podem acontecer ao mesmo tempo e
+ * threads diferentes raramente disputam a mesma faixa.
+ *
+ * Quando é preciso garantir que nenhuma operação está em andamento (por
+ * exemplo, para marcar o ponto exato de um snapshot), todas as faixas são
+ * travadas no modo exclusivo. Isso deve durar o mínimo possível, pois
+ * enquanto isso nenhuma operação nova começa.
+ */
+public class TravaParticionada {
+    // travas de cada faixa
+    private final ReentrantReadWriteLock[] faixas;
+
+    /**
+     * Cria uma trava com duas faixas por processador disponível.
+     */
+    public TravaParticionada() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Cria uma trava com a quantidade de faixas passada.
+     *
+     * @param quantidadeFaixas Quantidade de faixas da trava.
+     */
+    public TravaParticionada(int quantidadeFaixas) {
+        faixas = new ReentrantReadWriteLock[quantidadeFaixas];
+        for (int i = 0; i < quantidadeFaixas; i++) {
+            faixas[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Trava, no modo compartilhado, a faixa da thread atual.
+     *
+     * @return A faixa travada, que deve ser passada para liberarOperacao.
+     */
+    public int travarOperacao() {
+        int faixa = (int) (Thread.currentThread().getId() % faixas.length);
+        faixas[faixa].readLock().lock();
+        return faixa;
+    }
+
+    /**
+     * Libera a faixa travada por travarOperacao.
+     *
+     * @param faixa Faixa retornada por travarOperacao.
+     */
+    public void liberarOperacao(int faixa) {
+        faixas[faixa].readLock().unlock();
+    }
+
+    /**
+     * Trava todas as faixas no modo exclusivo, esperando as operações em
+     * andamento terminarem.
+     */
+    public void travarTudo() {
+        for (ReentrantReadWriteLock faixa : faixas) {
+            faixa.writeLock().lock();
+        }
+    }
+
+    /**
+     * Libera todas as faixas travadas por travarTudo.
+     */
+    public void liberarTudo() {
+        for (int i = faixas.length - 1; i >= 0; i--) {
+            faixas[i].writeLock().unlock();
+        }
+    }
+}
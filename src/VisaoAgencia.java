@@ -0,0 +1,120 @@
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Visão das contas de uma agência em um determinado instante, para consultas
+ * (como relatórios e auditorias) que precisam de saldos consistentes entre si
+ * enquanto as operações continuam acontecendo.
+ *
+ * A visão é aberta com Agencia.abrirVisao e usa um SnapshotAgencia: as contas
+ * não são copiadas na abertura; enquanto a visão está aberta, cada operação
+ * preserva o saldo anterior das contas que alterar. Assim, as operações não
+ * esperam pelas consultas, e todas as leituras feitas pela visão retornam os
+ * saldos do instante da abertura, por mais que a consulta demore. Várias
+ * visões podem estar abertas ao mesmo tempo.
+ *
+ * A visão deve ser fechada ao final da consulta, já que, enquanto ela está
+ * aberta, os saldos preservados ocupam memória e as operações têm o trabalho
+ * de preservá-los.
+ */
+public class VisaoAgencia implements AutoCloseable {
+    // contas (atuais) da agência
+    private final Map<Integer, Conta> contas;
+    // saldos do instante da abertura
+    private final SnapshotAgencia snapshot;
+    // executado ao fechar a visão
+    private final Runnable aoFechar;
+    // instante da abertura, em milissegundos
+    private final long instante;
+    private volatile boolean fechada;
+
+    /**
+     * Cria uma visão. Usado pela agência (veja Agencia.abrirVisao).
+     *
+     * @param contas   Contas da agência.
+     * @param snapshot Snapshot já registrado na agência.
+     * @param aoFechar Executado ao fechar a visão (para que a agência deixe de
+     *                 preservar os saldos no snapshot).
+     */
+    public VisaoAgencia(Map<Integer, Conta> contas, SnapshotAgencia snapshot, Runnable aoFechar) {
+        this.contas = contas;
+        this.snapshot = snapshot;
+        this.aoFechar = aoFechar;
+        instante = System.currentTimeMillis();
+    }
+
+    /**
+     * Retorna o instante em que a visão foi aberta.
+     *
+     * @return Instante, em milissegundos desde 01/01/1970.
+     */
+    public long getInstante() {
+        return instante;
+    }
+
+    /**
+     * Retorna o snapshot usado pela visão.
+     *
+     * @return Snapshot.
+     */
+    public SnapshotAgencia getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Busca uma conta, com o saldo do instante da abertura da visão.
+     *
+     * @param numero Número da conta.
+     * @return Cópia da conta ou null se ela não existia na abertura da visão.
+     */
+    public Conta buscarConta(int numero) {
+        verificarAberta();
+        Conta conta = contas.get(numero);
+        if (conta == null || !snapshot.contem(numero)) {
+            return null;
+        }
+        synchronized (conta) {
+            return new Conta(numero, snapshot.lerSaldo(conta));
+        }
+    }
+
+    /**
+     * Percorre as contas existentes na abertura da visão, com os saldos do
+     * instante da abertura.
+     *
+     * @param consumidor Recebe uma cópia de cada conta.
+     */
+    public void percorrerContas(Consumer<Conta> consumidor) {
+        verificarAberta();
+        for (Conta conta : contas.values()) {
+            if (snapshot.contem(conta.getNumero())) {
+                Conta copia;
+                synchronized (conta) {
+                    copia = new Conta(conta.getNumero(), snapshot.lerSaldo(conta));
+                }
+                consumidor.accept(copia);
+            }
+        }
+    }
+
+    /**
+     * Fecha a visão.
+     */
+    @Override
+    public void close() {
+        if (!fechada) {
+            fechada = true;
+            aoFechar.run();
+        }
+    }
+
+    /*
+     * Lança uma exceção se a visão já foi fechada (os saldos deixaram de ser
+     * preservados)
+     */
+    private void verificarAberta() {
+        if (fechada) {
+            throw new IllegalStateException("A visão da agência já foi fechada");
+        }
+    }
+}